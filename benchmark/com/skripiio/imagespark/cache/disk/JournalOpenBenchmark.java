@@ -0,0 +1,104 @@
+package com.skripiio.imagespark.cache.disk;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+import com.skripiio.imagespark.util.Md5FileNameGenerator;
+
+/**
+ * Times {@link DiskLruCache#open} replaying a journal of N entries, first in
+ * the text format of older caches and then in the binary format it is
+ * rewritten to. Only the journal is written, since replaying it doesn't read
+ * the value files.
+ *
+ * <p>
+ * Run with the compiled {@code src} folder and android.jar on the classpath:
+ * {@code java com.skripiio.imagespark.cache.disk.JournalOpenBenchmark
+ * [entries...]}
+ */
+public final class JournalOpenBenchmark {
+	private static final int APP_VERSION = 1;
+	private static final int VALUE_COUNT = 2;
+	private static final int RUNS = 7;
+
+	private JournalOpenBenchmark() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		int[] sizes = { 1000, 10000, 100000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+		File directory = new File(System.getProperty("java.io.tmpdir"),
+				"journal-open-benchmark");
+		for (int entries : sizes) {
+			long[] text = new long[RUNS];
+			long[] binary = new long[RUNS];
+			for (int run = 0; run < RUNS; run++) {
+				deleteRecursively(directory);
+				writeTextJournal(directory, entries);
+				// the first open replays the text journal and rewrites it
+				text[run] = timeOpen(directory);
+				binary[run] = timeOpen(directory);
+			}
+			System.out.println(entries + " entries: text " + median(text)
+					+ " ms, binary " + median(binary) + " ms");
+		}
+		deleteRecursively(directory);
+	}
+
+	private static long timeOpen(File directory) throws IOException {
+		long start = System.nanoTime();
+		DiskLruCache cache = DiskLruCache.open(directory, APP_VERSION,
+				VALUE_COUNT, Long.MAX_VALUE);
+		long millis = (System.nanoTime() - start) / 1000000;
+		cache.close();
+		return millis;
+	}
+
+	/** Writes a journal of clean entries, each read once after its edit. */
+	private static void writeTextJournal(File directory, int entries)
+			throws IOException {
+		directory.mkdirs();
+		Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(new File(directory,
+						DiskLruCache.JOURNAL_FILE)), "US-ASCII"));
+		try {
+			writer.write(DiskLruCache.MAGIC + "\n" + DiskLruCache.VERSION_1
+					+ "\n" + APP_VERSION + "\n" + VALUE_COUNT + "\n\n");
+			for (int i = 0; i < entries; i++) {
+				String key = Md5FileNameGenerator.generate("http://example.com/"
+						+ i + ".jpg");
+				writer.write("DIRTY " + key + "\n");
+				writer.write("CLEAN " + key + " " + (1000 + i % 50000) + " 40\n");
+				writer.write("READ " + key + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static long median(long[] values) {
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -19,10 +19,16 @@ import android.graphics.drawable.Drawable;
 import android.util.Log;
 import android.widget.ImageView;
 
+import com.skripiio.imagespark.cache.disk.AsyncDiskLruCache;
+import com.skripiio.imagespark.cache.disk.DiskLruCache;
+import com.skripiio.imagespark.cache.disk.DiskLruCache.Snapshot;
+import com.skripiio.imagespark.cache.disk.TinyLfuEvictionPolicy;
 import com.skripiio.imagespark.cache.memory.LruMemoryCache;
 import com.skripiio.imagespark.cache.memory.MemoryCache;
 import com.skripiio.imagespark.util.BitmapDecoder;
 import com.skripiio.imagespark.util.BitmapDownloader;
+import com.skripiio.imagespark.util.ByteBufferInputStream;
+import com.skripiio.imagespark.util.CacheWritingInputStream;
 import com.skripiio.imagespark.util.CompatibleAsyncTask;
 import com.skripiio.imagespark.util.Utils;
 
@@ -35,9 +41,22 @@ public class ImageLoader {
 	/** Memory Cache */
 	private MemoryCache mMemoryCache;
 
-	/** Disk Cache */
+	/**
+	 * Disk Cache of decoded bitmaps, already sampled down to the size they
+	 * were requested at. Reloading an image at the same size decodes this
+	 * small copy instead of the full download.
+	 */
 	private File mDiskCacheDir;
 	public static final int DISK_CACHE_SIZE_IN_MB = 20;
+	public static final String DISK_CACHE_DIR = "ImageSpark_Cache";
+
+	private static DiskLruCache mDecodedCache;
+
+	/**
+	 * Writes to the decoded cache on a thread of its own, so a decoded bitmap
+	 * is shown without waiting for it to be compressed and stored.
+	 */
+	private static AsyncDiskLruCache mDecodedCacheWriter;
 
 	/**
 	 * The Level Threshold is used to determine whether an object should be
@@ -97,7 +116,7 @@ public class ImageLoader {
 		mLevelsToCancel.add(2);
 		mMemoryCache = new LruMemoryCache(mContext, 15);
 		mLoadingBitmap = pLoadingBitmap;
-		mDiskCacheDir = Utils.getDiskCacheDir(pContext, "ImageSpark_Cache");
+		mDiskCacheDir = Utils.getDiskCacheDir(pContext, DISK_CACHE_DIR);
 
 		mQueue = new ArrayBlockingQueue<Runnable>(800, true);
 
@@ -124,6 +143,8 @@ public class ImageLoader {
 			// careful
 			if (mTasks.size() > i)
 				mTasks.get(i).cancel(true);
+			if (mTasks.size() > i)
+				mTasks.get(i).cancelDownload();
 			if (mTasks.size() > i)
 				mTasks.get(i).detachImageView();
 			if (mTasks.size() > i)
@@ -170,6 +191,7 @@ public class ImageLoader {
 	/** Cancels a task and removes it from the executor queue */
 	private void cancelTask(BitmapLevelListAsyncTask pTask) {
 		pTask.cancel(true);
+		pTask.cancelDownload();
 		pTask.detachImageView();
 		mTasks.remove(pTask);
 		mQueue.remove(pTask);
@@ -350,6 +372,32 @@ public class ImageLoader {
 		}
 	}
 
+	/**
+	 * Loads a page of images at once, such as the cells of a grid that are
+	 * bound together. The decoded disk cache is searched for the whole page in
+	 * one batch, and the images it holds are decoded into the memory cache
+	 * before the ImageViews are bound. The rest load one by one as usual.
+	 */
+	public void loadImages(Map<ImageView, Map<String, Integer>> pPage,
+			int pImageViewSize, ImageLoaderListener pListener) {
+		Map<ImageView, AsyncBitmapDrawable> placeholders = new HashMap<ImageView, AsyncBitmapDrawable>();
+		for (Map.Entry<ImageView, Map<String, Integer>> request : pPage
+				.entrySet()) {
+			ImageView imageView = request.getKey();
+			checkImageViewMaps(imageView, request.getValue());
+
+			// show the loading bitmap until the page has been looked up
+			AsyncBitmapDrawable placeholder = new AsyncBitmapDrawable(
+					mContext.getResources(), mLoadingBitmap,
+					new ArrayList<WeakReference<BitmapLevelListAsyncTask>>(),
+					request.getValue(), 0);
+			imageView.setImageDrawable(placeholder);
+			placeholders.put(imageView, placeholder);
+		}
+		new PageAsyncTask(placeholders, pImageViewSize, pListener)
+				.executeOnExecutor(mThreadPool);
+	}
+
 	private ArrayList<BitmapLevelListAsyncTask> mTasks;
 
 	/**
@@ -477,20 +525,146 @@ public class ImageLoader {
 		}
 	}
 
-	// public static DiskLruCache mCache;
-	//
-	// public static DiskLruCache getCache(File pDir) {
-	// if (mCache == null) {
-	// try {
-	// mCache = DiskLruCache.open(pDir, 0, 1,
-	// DISK_CACHE_SIZE_IN_MB * 1024 * 1024);
-	// } catch (IOException e) {
-	// e.printStackTrace();
-	// }
-	// }
-	//
-	// return mCache;
-	// }
+	/**
+	 * Opens the decoded bitmap cache, which is shared by every ImageLoader.
+	 * Like the download cache it loads its index in the background.
+	 * 
+	 * @return the cache, or null if it couldn't be opened
+	 */
+	private static synchronized DiskLruCache getDecodedCache(File pDir) {
+		if (mDecodedCache == null || mDecodedCache.isClosed()) {
+			try {
+				mDecodedCache = DiskLruCache.open(
+						pDir,
+						1,
+						1,
+						DISK_CACHE_SIZE_IN_MB * 1024 * 1024,
+						new DiskLruCache.Options()
+								.setShardCount(
+										BitmapDownloader.HTTP_CACHE_SHARD_COUNT)
+								.setPackedValueThreshold(
+										BitmapDownloader.HTTP_CACHE_PACKED_VALUE_THRESHOLD)
+								.setDurability(
+										DiskLruCache.Durability.BATCHED)
+								.setLazyOpen(
+										BitmapDownloader.HTTP_CACHE_OPEN_TIMEOUT_MS)
+								.setEvictionPolicy(new TinyLfuEvictionPolicy())
+								.setSalvageOnCorruption(true));
+				if (mDecodedCacheWriter != null) {
+					mDecodedCacheWriter.close();
+				}
+				mDecodedCacheWriter = new AsyncDiskLruCache(mDecodedCache);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return mDecodedCache;
+	}
+
+	/** @return the writer of the decoded cache {@code pCache} */
+	private static synchronized AsyncDiskLruCache getDecodedCacheWriter(
+			DiskLruCache pCache) {
+		return mDecodedCacheWriter.getCache() == pCache ? mDecodedCacheWriter
+				: null;
+	}
+
+	/** @return the decoded cache key of {@code pUrl} sampled for {@code pSize} */
+	private static String getDecodedCacheKey(String pUrl, int pSize) {
+		return pUrl + "#" + pSize;
+	}
+
+	/**
+	 * Looks up a page of images in the decoded disk cache with one batched
+	 * read, then binds each ImageView that hasn't been rebound meanwhile.
+	 */
+	private class PageAsyncTask extends CompatibleAsyncTask<Void, Void, Void> {
+		private final ArrayList<WeakReference<ImageView>> mImageViews = new ArrayList<WeakReference<ImageView>>();
+		private final ArrayList<AsyncBitmapDrawable> mPlaceholders = new ArrayList<AsyncBitmapDrawable>();
+		private final int mImageSize;
+		private final ImageLoaderListener mListener;
+
+		public PageAsyncTask(Map<ImageView, AsyncBitmapDrawable> pPlaceholders,
+				int pImageSize, ImageLoaderListener pListener) {
+			for (Map.Entry<ImageView, AsyncBitmapDrawable> placeholder : pPlaceholders
+					.entrySet()) {
+				mImageViews.add(new WeakReference<ImageView>(placeholder
+						.getKey()));
+				mPlaceholders.add(placeholder.getValue());
+			}
+			mImageSize = pImageSize;
+			mListener = pListener;
+		}
+
+		@Override
+		protected Void doInBackground(Void... params) {
+			DiskLruCache cache = getDecodedCache(mDiskCacheDir);
+			if (cache == null) {
+				return null;
+			}
+
+			ArrayList<String> keys = new ArrayList<String>();
+			for (AsyncBitmapDrawable placeholder : mPlaceholders) {
+				for (String url : placeholder.getUrlLevels().keySet()) {
+					if (getImageFromMemCache(url) == null) {
+						keys.add(getDecodedCacheKey(url, mImageSize));
+					}
+				}
+			}
+
+			Map<String, Snapshot> snapshots;
+			try {
+				snapshots = cache.getAll(keys);
+			} catch (IOException e) {
+				Log.v(TAG, "Failed to read page from Disk Cache! "
+						+ e.getMessage());
+				return null;
+			}
+
+			try {
+				// only the best cached level of each image is decoded
+				for (AsyncBitmapDrawable placeholder : mPlaceholders) {
+					for (String url : Utils.SortUrlsHighIndexFirst(placeholder
+							.getUrlLevels())) {
+						Snapshot snapshot = snapshots.get(getDecodedCacheKey(
+								url, mImageSize));
+						if (snapshot == null) {
+							continue;
+						}
+						Bitmap bitmap = BitmapDecoder
+								.decodeSampledBitmapFromFile(
+										new ByteBufferInputStream(snapshot
+												.map(0)), mImageSize,
+										mImageSize);
+						if (bitmap != null) {
+							mMemoryCache.put(url, bitmap);
+							break;
+						}
+					}
+				}
+			} catch (IOException e) {
+				Log.v(TAG, "Failed to decode page from Disk Cache! "
+						+ e.getMessage());
+			} finally {
+				for (Snapshot snapshot : snapshots.values()) {
+					snapshot.close();
+				}
+			}
+			return null;
+		}
+
+		@Override
+		protected void onPostExecute(Void result) {
+			for (int i = 0; i < mImageViews.size(); i++) {
+				ImageView imageView = mImageViews.get(i).get();
+				AsyncBitmapDrawable placeholder = mPlaceholders.get(i);
+				if (imageView != null
+						&& imageView.getDrawable() == placeholder) {
+					loadImage(imageView, placeholder.getUrlLevels(),
+							mImageSize, mListener);
+				}
+			}
+		}
+	}
 
 	public int mTaskNums = 0;
 
@@ -499,6 +673,9 @@ public class ImageLoader {
 
 		private WeakReference<ImageView> mImageViewReference;
 		private boolean mCancellable = false;
+
+		/** The download being decoded, if it is being written to the cache. */
+		private volatile CacheWritingInputStream mDownload;
 		private String mUrl;
 		private int mImageSize;
 		private int mStateLevel;
@@ -594,22 +771,30 @@ public class ImageLoader {
 			}
 			// check the disk cache for image
 			try {
-				// DiskLruCache cache = getCache(mDiskCacheDir);
-				// Snapshot snapshot = cache.get(mUrl);
-				// if (snapshot != null) {
-				// // found in disk cache
-				// }
+				DiskLruCache decodedCache = getDecodedCache(mDiskCacheDir);
+				String decodedKey = getDecodedCacheKey(mUrl, mImageSize);
+				Bitmap godBitmap = null;
+				if (decodedCache != null) {
+					godBitmap = getDecodedBitmap(decodedCache, decodedKey);
+				}
 
 				if (checkCancelled()) {
 					return null;
 				}
 
-				Bitmap godBitmap = null;
-				InputStream godStream = null;
+				if (godBitmap != null) {
+					// found in disk cache
+					onBitmapLoaded(godBitmap);
+					return godBitmap;
+				}
 
-				// if (snapshot == null) {
-				godStream = BitmapDownloader.downloadBitmap(mContext, mUrl,
-						mHttpDiskCacheName, mHttpDiskCacheSizeInMb);
+				// the levels kept in memory eagerly are the thumbnails, which
+				// get a disk cache partition of their own
+				InputStream godStream = BitmapDownloader.downloadBitmap(
+						mContext, mUrl, mHttpDiskCacheName,
+						mHttpDiskCacheSizeInMb,
+						mStateLevel <= mLevelThreshold ? BitmapDownloader.HTTP_CACHE_THUMBNAIL_PARTITION
+								: null);
 
 				if (godStream == null) {
 					// something went wrong with the network to download the
@@ -619,7 +804,14 @@ public class ImageLoader {
 
 				}
 
+				if (godStream instanceof CacheWritingInputStream) {
+					mDownload = (CacheWritingInputStream) godStream;
+				}
 				if (checkCancelled()) {
+					// closing still finishes writing the download to the disk
+					// cache, unless it can be resumed later
+					cancelDownload();
+					closeDownload(godStream);
 					return null;
 				}
 
@@ -627,43 +819,27 @@ public class ImageLoader {
 				// byte[] content = Utils
 				// .getByteArrayFromInputStream(godStream);
 
-				// once downloaded, decode it
-				godBitmap = BitmapDecoder.decodeSampledBitmapFromFile(
-						godStream, mImageSize, mImageSize);
-				godStream.close();
-				// put in disk cache
-				// if (godBitmap != null) {
-				// ByteArrayOutputStream bos = new ByteArrayOutputStream();
-				// godBitmap.compress(CompressFormat.PNG, 100, bos);
-				//
-				// byte[] bitmapdata = bos.toByteArray();
-				// ByteArrayInputStream bs = new ByteArrayInputStream(
-				// bitmapdata);
-				// cache.put(mCache, mUrl, bs);
-				// }
-				// } else {
-				// final BufferedInputStream buffIn = new BufferedInputStream(
-				// snapshot.getInputStream(0), Utils.IO_BUFFER_SIZE);
-				// godBitmap = BitmapDecoder.decodeSampledBitmapFromFile(
-				// buffIn, mImageSize, mImageSize);
-				// snapshot.close();
-				// }
-
-				// once decoded, check if ImageView is attached
-				if (godBitmap != null) {
-					if (isImageViewAttached()) {
-
-						mMemoryCache.put(mUrl, godBitmap);
+				// decode it as it downloads. The download is closed even if
+				// decoding fails, since other tasks for the url wait for it.
+				try {
+					godBitmap = BitmapDecoder.decodeSampledBitmapFromFile(
+							godStream, mImageSize, mImageSize);
+				} finally {
+					closeDownload(godStream);
+				}
 
-					} else {
-						// if the url is below the level threshold, put it into
-						// memory cache
-						if (mStateLevel <= mLevelThreshold) {
-							// mMemoryCache.put(mUrl, godBitmap);
-						}
+				// put in disk cache behind the scenes
+				if (godBitmap != null && decodedCache != null) {
+					AsyncDiskLruCache writer = getDecodedCacheWriter(decodedCache);
+					if (writer != null) {
+						writer.put(decodedKey, godBitmap);
 					}
 				}
 
+				if (godBitmap != null) {
+					onBitmapLoaded(godBitmap);
+				}
+
 				return godBitmap;
 
 			} catch (IOException e) {
@@ -677,6 +853,56 @@ public class ImageLoader {
 			return null;
 		}
 
+		/**
+		 * Decodes the sampled down copy of this task's image from the decoded
+		 * cache.
+		 * 
+		 * @return the bitmap, or null if it isn't cached
+		 */
+		private Bitmap getDecodedBitmap(DiskLruCache pCache, String pKey)
+				throws IOException {
+			Snapshot snapshot = pCache.get(pKey);
+			if (snapshot == null) {
+				return null;
+			}
+			try {
+				// already at the requested size, so this only decodes
+				return BitmapDecoder.decodeSampledBitmapFromFile(
+						new ByteBufferInputStream(snapshot.map(0)), mImageSize,
+						mImageSize);
+			} finally {
+				snapshot.close();
+			}
+		}
+
+		/** Once decoded, check if ImageView is attached */
+		private void onBitmapLoaded(Bitmap pBitmap) {
+			if (isImageViewAttached()) {
+
+				mMemoryCache.put(mUrl, pBitmap);
+
+			} else {
+				// if the url is below the level threshold, put it into
+				// memory cache
+				if (mStateLevel <= mLevelThreshold) {
+					// mMemoryCache.put(mUrl, godBitmap);
+				}
+			}
+		}
+
+		/**
+		 * Closes a stream from the downloader. A failure here only means the
+		 * download couldn't be cached, so it doesn't fail the task.
+		 */
+		private void closeDownload(InputStream pStream) {
+			try {
+				pStream.close();
+			} catch (IOException e) {
+				Log.v(TAG + " Task", "AsyncTask " + mTaskNumber
+						+ " - Failed to cache download " + e.getMessage());
+			}
+		}
+
 		@Override
 		protected void onPostExecute(Bitmap result) {
 
@@ -730,5 +956,18 @@ public class ImageLoader {
 			return mCancellable;
 		}
 
+		/**
+		 * Stops the download of a cancellable task where it is, keeping what
+		 * has been downloaded so the image resumes from there when it is next
+		 * asked for. Downloads of other tasks are still finished into the
+		 * disk cache.
+		 */
+		public void cancelDownload() {
+			CacheWritingInputStream download = mDownload;
+			if (mCancellable && download != null) {
+				download.cancel();
+			}
+		}
+
 	}
 }
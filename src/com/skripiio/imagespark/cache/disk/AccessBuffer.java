@@ -0,0 +1,83 @@
+package com.skripiio.imagespark.cache.disk;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded ring of the keys read from a {@link DiskLruCache}, so that reads
+ * can be reported to an {@link EvictionPolicy} without waiting for its lock.
+ * Readers add keys with {@link #offer}, and whichever reader fills the buffer
+ * past a threshold drains it into the policy.
+ *
+ * <p>
+ * The buffer is lossy: an access is dropped when the buffer is full, and
+ * may be dropped when it is drained at the moment a reader is writing to
+ * it. A policy only needs an approximate order of reads, so losing a few is
+ * cheaper than making readers wait.
+ */
+final class AccessBuffer {
+	private static final int CAPACITY = 128;
+	private static final int MASK = CAPACITY - 1;
+
+	/** How many buffered keys make a reader drain the buffer. */
+	private static final int DRAIN_THRESHOLD = CAPACITY / 4;
+
+	private final AtomicReferenceArray<String> slots = new AtomicReferenceArray<String>(
+			CAPACITY);
+	private final AtomicLong writeCount = new AtomicLong();
+
+	/** Only advanced while holding the policy's lock. */
+	private volatile long readCount;
+
+	private final AtomicBoolean draining = new AtomicBoolean();
+
+	/**
+	 * Adds {@code key}, or drops it if the buffer is full.
+	 *
+	 * @return true if the buffer should be drained
+	 */
+	boolean offer(String key) {
+		while (true) {
+			long write = writeCount.get();
+			if (write - readCount >= CAPACITY) {
+				return true;
+			}
+			if (writeCount.compareAndSet(write, write + 1)) {
+				slots.lazySet((int) (write & MASK), key);
+				return write + 1 - readCount >= DRAIN_THRESHOLD;
+			}
+		}
+	}
+
+	/**
+	 * Claims the buffer for a reader about to drain it.
+	 *
+	 * @return false if another reader is already draining it
+	 */
+	boolean tryStartDrain() {
+		return draining.compareAndSet(false, true);
+	}
+
+	void finishDrain() {
+		draining.set(false);
+	}
+
+	/**
+	 * Tells {@code policy} about the buffered keys, oldest first, and adds
+	 * them to {@code drained}. Callers must hold the policy's lock.
+	 */
+	void drainTo(EvictionPolicy policy, Collection<String> drained) {
+		long write = writeCount.get();
+		long read = readCount;
+		for (; read < write; read++) {
+			String key = slots.getAndSet((int) (read & MASK), null);
+			if (key != null) { // null if the reader hasn't written it yet
+				policy.recordAccess(key);
+				drained.add(key);
+			}
+		}
+		readCount = read;
+	}
+}
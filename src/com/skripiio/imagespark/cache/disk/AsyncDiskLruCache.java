@@ -0,0 +1,295 @@
+package com.skripiio.imagespark.cache.disk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import android.graphics.Bitmap;
+
+import com.skripiio.imagespark.util.Md5FileNameGenerator;
+
+/**
+ * Runs the operations of a {@link DiskLruCache} on a thread of its own, so
+ * that a thread that has just decoded an image can hand it to the cache and
+ * move on instead of waiting for it to be compressed, written and journaled.
+ * Each operation returns a {@link Future} of its result.
+ *
+ * <p>
+ * Writes wait in a bounded write-behind queue. A write to a key that already
+ * has one queued replaces it, and the replaced write's future completes with
+ * false without touching the disk; when the queue is full, new writes are
+ * refused the same way, which like an edit that is already in progress only
+ * means the value isn't cached. Removes and flushes are never refused, since a
+ * removed entry must not stay readable; they may take the queue past its bound.
+ * Reads are run before any queued write, except that a read of a key with a
+ * queued write runs that write first, so a read always sees the values written
+ * before it.
+ *
+ * <p>
+ * Keys are the keys of {@link DiskLruCache#get}, which are hashed before they
+ * reach the cache.
+ */
+public final class AsyncDiskLruCache implements Closeable {
+	/** The number of writes that may wait before new ones are refused. */
+	public static final int DEFAULT_MAX_QUEUED_WRITES = 64;
+
+	private final DiskLruCache cache;
+	private final int maxQueuedWrites;
+
+	/** Guards the queues and {@link #closed}. */
+	private final Object lock = new Object();
+	private final LinkedList<Runnable> reads = new LinkedList<Runnable>();
+
+	/**
+	 * Writes by key, oldest first. Flushes are queued under keys of their own
+	 * so that they stay in order with the writes.
+	 */
+	private final LinkedHashMap<Object, FutureTask<?>> writes = new LinkedHashMap<Object, FutureTask<?>>();
+	private boolean closed;
+
+	private final Thread thread;
+
+	/** A write that can be completed without running, when it's not needed. */
+	private static final class Write extends FutureTask<Boolean> {
+		private Write(Callable<Boolean> callable) {
+			super(callable);
+		}
+
+		private void discard() {
+			set(Boolean.FALSE);
+		}
+	}
+
+	public AsyncDiskLruCache(DiskLruCache cache) {
+		this(cache, DEFAULT_MAX_QUEUED_WRITES);
+	}
+
+	public AsyncDiskLruCache(DiskLruCache cache, int maxQueuedWrites) {
+		if (maxQueuedWrites <= 0) {
+			throw new IllegalArgumentException("maxQueuedWrites <= 0");
+		}
+		this.cache = cache;
+		this.maxQueuedWrites = maxQueuedWrites;
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runQueued();
+			}
+		}, "DiskLruCache I/O");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Returns the cache this runs operations on. */
+	public DiskLruCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Reads the entry for {@code key} ahead of any queued write. The future's
+	 * snapshot, if any, must be closed by the caller.
+	 */
+	public Future<DiskLruCache.Snapshot> get(final String key) {
+		FutureTask<DiskLruCache.Snapshot> read = new FutureTask<DiskLruCache.Snapshot>(
+				new Callable<DiskLruCache.Snapshot>() {
+					@Override
+					public DiskLruCache.Snapshot call() throws IOException {
+						return cache.get(key);
+					}
+				});
+		synchronized (lock) {
+			checkNotClosed();
+			FutureTask<?> pending = writes.remove(key);
+			if (pending != null) {
+				reads.add(pending); // so that the read sees it
+			}
+			reads.add(read);
+			lock.notify();
+		}
+		return read;
+	}
+
+	/**
+	 * Queues {@link DiskLruCache#put(String, Bitmap)}. {@code bitmap} must not
+	 * be recycled until the future completes; if it is, the write is dropped.
+	 */
+	public Future<Boolean> put(final String key, final Bitmap bitmap) {
+		return enqueue(key, new Write(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return !bitmap.isRecycled() && cache.put(key, bitmap);
+			}
+		}), true);
+	}
+
+	/**
+	 * Queues writing {@code values}, one per value of the cache, to the entry
+	 * for {@code key}. The arrays must not be changed until the future
+	 * completes.
+	 *
+	 * @param partition
+	 *            the partition to put the entry in, or null for the default
+	 *            partition
+	 */
+	public Future<Boolean> put(final String key, final String partition,
+			final byte[]... values) {
+		return enqueue(key, new Write(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws IOException {
+				return write(Md5FileNameGenerator.generate(key), partition,
+						values);
+			}
+		}), true);
+	}
+
+	/**
+	 * Queues removing the entry for {@code key}, replacing a queued write.
+	 * Unlike a write, a remove is queued even when the queue is full.
+	 */
+	public Future<Boolean> remove(final String key) {
+		return enqueue(key, new Write(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws IOException {
+				return cache.remove(Md5FileNameGenerator.generate(key));
+			}
+		}), false);
+	}
+
+	/**
+	 * Queues a {@link DiskLruCache#flush} behind the writes queued so far, so
+	 * the future completes once they are all durable.
+	 */
+	public Future<Void> flush() {
+		FutureTask<Void> flush = new FutureTask<Void>(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				cache.flush();
+				return null;
+			}
+		});
+		synchronized (lock) {
+			checkNotClosed();
+			writes.put(new Object(), flush); // never refused or replaced
+			lock.notify();
+		}
+		return flush;
+	}
+
+	/** Returns the number of writes waiting in the queue. */
+	public int queuedWrites() {
+		synchronized (lock) {
+			return writes.size();
+		}
+	}
+
+	/**
+	 * Stops taking operations and waits for the queued ones to finish. The
+	 * cache itself is left open.
+	 */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+			lock.notify();
+		}
+		if (Thread.currentThread() == thread) {
+			return; // closed by a queued operation
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				thread.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Queues {@code write} for {@code key}, replacing a queued write of the
+	 * same key. A {@code refusable} write is discarded instead when the queue
+	 * is full.
+	 */
+	private Future<Boolean> enqueue(String key, Write write,
+			boolean refusable) {
+		synchronized (lock) {
+			checkNotClosed();
+			FutureTask<?> replaced = writes.remove(key);
+			if (replaced != null) {
+				((Write) replaced).discard();
+			} else if (refusable && writes.size() >= maxQueuedWrites) {
+				write.discard();
+				return write;
+			}
+			writes.put(key, write);
+			lock.notify();
+		}
+		return write;
+	}
+
+	private boolean write(String key, String partition, byte[][] values)
+			throws IOException {
+		DiskLruCache.Editor editor = cache.edit(key, partition);
+		if (editor == null) {
+			return false; // another edit is in progress
+		}
+		try {
+			for (int i = 0; i < values.length; i++) {
+				OutputStream out = editor.newOutputStream(i);
+				try {
+					out.write(values[i]);
+				} finally {
+					out.close();
+				}
+			}
+			editor.commit();
+			return true;
+		} finally {
+			editor.abortUnlessCommitted();
+		}
+	}
+
+	/** The loop of the I/O thread, which ends once closed and idle. */
+	private void runQueued() {
+		while (true) {
+			Runnable next;
+			synchronized (lock) {
+				while (reads.isEmpty() && writes.isEmpty()) {
+					if (closed) {
+						return;
+					}
+					try {
+						lock.wait();
+					} catch (InterruptedException ignored) {
+					}
+				}
+				if (!reads.isEmpty()) {
+					next = reads.removeFirst();
+				} else {
+					Iterator<Map.Entry<Object, FutureTask<?>>> oldest = writes
+							.entrySet().iterator();
+					next = oldest.next().getValue();
+					oldest.remove();
+				}
+			}
+			next.run(); // failures are kept by the future
+		}
+	}
+
+	private void checkNotClosed() {
+		if (closed) {
+			throw new IllegalStateException("cache is closed");
+		}
+	}
+}
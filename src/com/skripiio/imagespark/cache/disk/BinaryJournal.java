@@ -0,0 +1,347 @@
+package com.skripiio.imagespark.cache.disk;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * The on-disk format of a {@link DiskLruCache} journal.
+ *
+ * <p>
+ * A journal starts with a 20 byte header: the magic number, the format
+ * version, the application's version and the value count, each as a big-endian
+ * int, followed by the CRC32 of those 16 bytes.
+ *
+ * <p>
+ * The header is followed by fixed-size records, one per cache operation. Each
+ * record holds the operation code, the index of the entry's partition, the key
+ * length, the key padded to {@link #MAX_KEY_LENGTH} bytes, one big-endian long
+ * per value, the entry's access stamp as a big-endian long and the CRC32 of
+ * everything before it. For CLEAN records the value longs are the value
+ * lengths, for PACKED records they are the {@link SegmentStore} locations of
+ * the values and for CONTENT records the {@link BlobStore} ids of the values;
+ * the other operations leave them zero. PACKED and CONTENT records publish an
+ * entry just like a CLEAN one.
+ *
+ * <p>
+ * The access stamp of CLEAN, PACKED, CONTENT and READ records is the cache's
+ * access clock when the entry was last used. Each shard has its own journal,
+ * so replaying them one after another says nothing about how their entries
+ * were used relative to each other; the stamps do.
+ *
+ * <p>
+ * Older journals are still read. Version 3 records lack the stamp, and
+ * version 2 records also lack the partition index and are read as records of
+ * the first partition. Because every record has the same size a reader never
+ * has to scan for separators, and a torn write at the end of the file is
+ * recognised by its short length.
+ */
+final class BinaryJournal {
+	static final int MAGIC = 0x444c5255; // "DLRU"
+	static final int VERSION = 4;
+
+	/** The previous version, whose records have no access stamp. */
+	static final int VERSION_3 = 3;
+
+	/** The version before that, whose records have no partition index. */
+	static final int VERSION_2 = 2;
+
+	/** Returned by {@link Reader#stamp} for records without an access stamp. */
+	static final long NO_STAMP = -1;
+	static final int HEADER_SIZE = 20;
+
+	/** Keys are stored in a fixed-width ASCII field of this many bytes. */
+	static final int MAX_KEY_LENGTH = 32;
+
+	static final byte CLEAN = 1;
+	static final byte DIRTY = 2;
+	static final byte REMOVE = 3;
+	static final byte READ = 4;
+	static final byte PACKED = 5;
+	static final byte CONTENT = 6;
+
+	private BinaryJournal() {
+	}
+
+	/** The largest partition index a record can hold. */
+	static final int MAX_PARTITION = 0xff;
+
+	/** Returns the size in bytes of each record for {@code valueCount}. */
+	static int recordSize(int valueCount) {
+		return recordSize(VERSION, valueCount);
+	}
+
+	private static int recordSize(int version, int valueCount) {
+		return (version == VERSION_2 ? 2 : 3) + MAX_KEY_LENGTH + 8
+				* valueCount + (version == VERSION ? 8 : 0) + 4;
+	}
+
+	/** Returns true if {@code prefix} starts with this format's magic. */
+	static boolean isBinaryJournal(byte[] prefix, int length) {
+		return length >= 4 && readInt(prefix, 0) == MAGIC;
+	}
+
+	private static void writeInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+
+	private static int readInt(byte[] buffer, int offset) {
+		return ((buffer[offset] & 0xff) << 24)
+				| ((buffer[offset + 1] & 0xff) << 16)
+				| ((buffer[offset + 2] & 0xff) << 8)
+				| (buffer[offset + 3] & 0xff);
+	}
+
+	private static void writeLong(byte[] buffer, int offset, long value) {
+		writeInt(buffer, offset, (int) (value >>> 32));
+		writeInt(buffer, offset + 4, (int) value);
+	}
+
+	private static long readLong(byte[] buffer, int offset) {
+		return ((long) readInt(buffer, offset) << 32)
+				| (readInt(buffer, offset + 4) & 0xffffffffL);
+	}
+
+	private static int checksum(CRC32 crc, byte[] buffer, int length) {
+		crc.reset();
+		crc.update(buffer, 0, length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Reads as many bytes as are available up to {@code length}, returning
+	 * the number read. A short count means the end of the stream was reached.
+	 */
+	private static int readFully(InputStream in, byte[] buffer, int length)
+			throws IOException {
+		int total = 0;
+		while (total < length) {
+			int count = in.read(buffer, total, length - total);
+			if (count == -1) {
+				break;
+			}
+			total += count;
+		}
+		return total;
+	}
+
+	/**
+	 * Appends records to a journal. Not thread safe; each shard uses its own
+	 * writer under its lock.
+	 */
+	static final class Writer implements Closeable {
+		private final OutputStream out;
+		private final int valueCount;
+		private final byte[] record;
+		private final CRC32 crc = new CRC32();
+
+		Writer(OutputStream out, int valueCount) {
+			this.out = out;
+			this.valueCount = valueCount;
+			this.record = new byte[recordSize(valueCount)];
+		}
+
+		void writeHeader(int appVersion) throws IOException {
+			byte[] header = new byte[HEADER_SIZE];
+			writeInt(header, 0, MAGIC);
+			writeInt(header, 4, VERSION);
+			writeInt(header, 8, appVersion);
+			writeInt(header, 12, valueCount);
+			writeInt(header, 16, checksum(crc, header, 16));
+			out.write(header);
+		}
+
+		/** Writes a record without values or an access stamp. */
+		void write(byte op, String key) throws IOException {
+			write(op, 0, key, null, 0);
+		}
+
+		/** Writes a record without values, stamped with {@code stamp}. */
+		void write(byte op, String key, long stamp) throws IOException {
+			write(op, 0, key, null, stamp);
+		}
+
+		/**
+		 * Writes a record. {@code values} may be null for operations that
+		 * carry no values.
+		 */
+		void write(byte op, int partition, String key, long[] values,
+				long stamp) throws IOException {
+			int length = key.length();
+			record[0] = op;
+			record[1] = (byte) partition;
+			record[2] = (byte) length;
+			for (int i = 0; i < MAX_KEY_LENGTH; i++) {
+				record[3 + i] = i < length ? (byte) key.charAt(i) : 0;
+			}
+			int offset = 3 + MAX_KEY_LENGTH;
+			for (int i = 0; i < valueCount; i++) {
+				writeLong(record, offset, values != null ? values[i] : 0);
+				offset += 8;
+			}
+			writeLong(record, offset, stamp);
+			offset += 8;
+			writeInt(record, offset, checksum(crc, record, offset));
+			out.write(record);
+		}
+
+		void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads the records of a journal in order. After {@link #next} returns
+	 * true the current record is available from {@link #op},
+	 * {@link #partition}, {@link #key}, {@link #values} and {@link #stamp}.
+	 */
+	static final class Reader implements Closeable {
+		private final InputStream in;
+		private final int valueCount;
+		private byte[] record;
+		private final CRC32 crc = new CRC32();
+		private final long[] values;
+		private int version;
+		private byte op;
+		private int partition;
+		private String key;
+		private long stamp;
+		private int recordCount;
+		private boolean truncated;
+
+		Reader(InputStream in, int valueCount) {
+			this.in = in;
+			this.valueCount = valueCount;
+			this.values = new long[valueCount];
+		}
+
+		/**
+		 * Reads and validates the header.
+		 *
+		 * @throws IOException
+		 *             if the header is damaged or doesn't match this cache
+		 */
+		void readHeader(int appVersion) throws IOException {
+			byte[] header = new byte[HEADER_SIZE];
+			if (readFully(in, header, HEADER_SIZE) != HEADER_SIZE) {
+				throw new EOFException("truncated journal header");
+			}
+			int magic = readInt(header, 0);
+			int version = readInt(header, 4);
+			int headerAppVersion = readInt(header, 8);
+			int headerValueCount = readInt(header, 12);
+			if (readInt(header, 16) != checksum(crc, header, 16)
+					|| magic != MAGIC
+					|| (version != VERSION && version != VERSION_3
+							&& version != VERSION_2)
+					|| headerAppVersion != appVersion
+					|| headerValueCount != valueCount) {
+				throw new IOException("unexpected journal header: ["
+						+ Integer.toHexString(magic) + ", " + version + ", "
+						+ headerAppVersion + ", " + headerValueCount + "]");
+			}
+			this.version = version;
+			this.record = new byte[recordSize(version, valueCount)];
+		}
+
+		/** Returns true if the journal was written in an older version. */
+		boolean isOutdated() {
+			return version != VERSION;
+		}
+
+		/**
+		 * Advances to the next record.
+		 *
+		 * @return false at the end of the journal. A partially written last
+		 *         record is treated as the end and reported by
+		 *         {@link #isTruncated}.
+		 * @throws IOException
+		 *             if a record fails its checksum
+		 */
+		boolean next() throws IOException {
+			int count = readFully(in, record, record.length);
+			if (count < record.length) {
+				truncated = count > 0;
+				return false;
+			}
+			int offset = record.length - 4;
+			if (readInt(record, offset) != checksum(crc, record, offset)) {
+				throw new IOException("journal record " + recordCount
+						+ " failed its checksum");
+			}
+			int start = version == VERSION_2 ? 2 : 3;
+			int length = record[start - 1] & 0xff;
+			if (length == 0 || length > MAX_KEY_LENGTH) {
+				throw new IOException("journal record " + recordCount
+						+ " has an invalid key length " + length);
+			}
+			op = record[0];
+			partition = version == VERSION_2 ? 0 : record[1] & 0xff;
+			char[] chars = new char[length];
+			for (int i = 0; i < length; i++) {
+				chars[i] = (char) (record[start + i] & 0xff);
+			}
+			key = new String(chars);
+			offset = start + MAX_KEY_LENGTH;
+			for (int i = 0; i < valueCount; i++) {
+				values[i] = readLong(record, offset);
+				offset += 8;
+			}
+			stamp = version == VERSION ? readLong(record, offset) : NO_STAMP;
+			recordCount++;
+			return true;
+		}
+
+		byte op() {
+			return op;
+		}
+
+		/** The partition index of the current record. */
+		int partition() {
+			return partition;
+		}
+
+		String key() {
+			return key;
+		}
+
+		/** The values of the current record. Overwritten by {@link #next}. */
+		long[] values() {
+			return values;
+		}
+
+		/**
+		 * The access stamp of the current record, or {@link #NO_STAMP} if the
+		 * journal predates stamps.
+		 */
+		long stamp() {
+			return stamp;
+		}
+
+		/** Returns the number of records read so far. */
+		int recordCount() {
+			return recordCount;
+		}
+
+		/** Returns true if the journal ended with a partial record. */
+		boolean isTruncated() {
+			return truncated;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package com.skripiio.imagespark.cache.disk;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed files that hold the values of a {@link DiskLruCache}
+ * opened with {@link DiskLruCache.Options#setContentAddressed}, so that
+ * entries with identical values share one file.
+ *
+ * <p>
+ * A blob is named by an id taken from the MD5 digest of its content. Storing
+ * a value whose blob already exists only adds a reference to it; a blob is
+ * deleted when its last reference is released. Ids are only 64 bits, so a
+ * value is compared byte for byte with the blob it would share before it is
+ * deduplicated, and a colliding value gets the next free id instead.
+ * Reference counts aren't stored: they are rebuilt from the journal when the
+ * cache is opened.
+ *
+ * <p>
+ * References are counted per partition of the cache. A blob's length is added
+ * to the cache's size once, and to the size of each partition once for as
+ * long as any of its entries use the blob, so that sharing a value also
+ * shares its cost.
+ *
+ * <p>
+ * The bookkeeping is guarded by this store's monitor, which may be taken
+ * while holding a shard's lock but not the other way around.
+ */
+final class BlobStore {
+	static final String BLOB_FILE_PREFIX = "blob.";
+
+	private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+	private static final class Blob {
+		private final File file;
+		private final long length;
+
+		/** The number of references held by each partition's entries. */
+		private final int[] references;
+
+		private Blob(File file, long length, int partitionCount) {
+			this.file = file;
+			this.length = length;
+			this.references = new int[partitionCount];
+		}
+
+		private boolean isUnused() {
+			for (int count : references) {
+				if (count > 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private final DirectoryLayout layout;
+
+	/** The cache's size, which blobs are added to and removed from. */
+	private final AtomicLong size;
+
+	/** The sizes of the cache's partitions, indexed like the references. */
+	private final AtomicLong[] partitionSizes;
+
+	private final Map<Long, Blob> blobs = new HashMap<Long, Blob>();
+
+	BlobStore(DirectoryLayout layout, AtomicLong size,
+			AtomicLong[] partitionSizes) {
+		this.layout = layout;
+		this.size = size;
+		this.partitionSizes = partitionSizes;
+	}
+
+	/**
+	 * Finds the blobs left by an earlier session. They have no references
+	 * until the journal is replayed.
+	 */
+	synchronized void load() {
+		for (File file : layout.listFiles()) {
+			String name = file.getName();
+			if (!name.startsWith(BLOB_FILE_PREFIX)) {
+				continue;
+			}
+			try {
+				long id = parseId(name.substring(BLOB_FILE_PREFIX.length()));
+				blobs.put(id, new Blob(file, file.length(),
+						partitionSizes.length));
+			} catch (NumberFormatException notABlob) {
+			}
+		}
+	}
+
+	/** Forgets every blob, once the cache directory has been emptied. */
+	synchronized void clear() {
+		blobs.clear();
+	}
+
+	/** Returns true if the blob {@code id} exists. */
+	synchronized boolean contains(long id) {
+		return blobs.containsKey(id);
+	}
+
+	/** Returns the length of the blob {@code id}. */
+	synchronized long lengthOf(long id) {
+		return blobs.get(id).length;
+	}
+
+	/** Counts a reference found in the journal, held by {@code partition}. */
+	synchronized void addReference(long id, int partition) {
+		blobs.get(id).references[partition]++;
+	}
+
+	/**
+	 * Deletes the blobs without references once the journal has been
+	 * replayed, and adds the rest to the cache's size and to the sizes of the
+	 * partitions using them.
+	 */
+	synchronized void deleteUnused() throws IOException {
+		for (Iterator<Blob> i = blobs.values().iterator(); i.hasNext();) {
+			Blob blob = i.next();
+			if (blob.isUnused()) {
+				deleteFile(blob.file);
+				i.remove();
+				continue;
+			}
+			size.addAndGet(blob.length);
+			for (int p = 0; p < partitionSizes.length; p++) {
+				if (blob.references[p] > 0) {
+					partitionSizes[p].addAndGet(blob.length);
+				}
+			}
+		}
+	}
+
+	File fileFor(long id) {
+		return layout.fileFor(BLOB_FILE_PREFIX + Long.toHexString(id));
+	}
+
+	/**
+	 * Stores the content of {@code source} and takes a reference to it for
+	 * {@code partition}. {@code source} is moved into a new blob, or deleted
+	 * if an identical blob already exists.
+	 *
+	 * @return the id of the blob
+	 */
+	long store(File source, int partition) throws IOException {
+		long id = idOf(source);
+		long length = source.length();
+		synchronized (this) {
+			while (true) {
+				Blob blob = blobs.get(id);
+				if (blob == null) {
+					File file = fileFor(id);
+					layout.makeDirectoryFor(file);
+					if (!source.renameTo(file)) {
+						throw new IOException("failed to rename " + source
+								+ " to " + file);
+					}
+					blob = new Blob(file, length, partitionSizes.length);
+					blobs.put(id, blob);
+					size.addAndGet(length);
+					reference(blob, partition);
+					return id;
+				}
+				if (blob.length == length && contentEquals(source, blob.file)) {
+					reference(blob, partition);
+					deleteFile(source);
+					return id;
+				}
+				id = id == -1 ? 1 : id + 1; // collision, probe on
+			}
+		}
+	}
+
+	/** Takes another reference to the blob {@code id} for {@code partition}. */
+	synchronized void retain(long id, int partition) {
+		reference(blobs.get(id), partition);
+	}
+
+	/**
+	 * Releases a reference held by {@code partition}, deleting the blob once
+	 * it has none.
+	 */
+	synchronized void release(long id, int partition) throws IOException {
+		Blob blob = blobs.get(id);
+		if (blob == null) {
+			return;
+		}
+		if (--blob.references[partition] == 0) {
+			partitionSizes[partition].addAndGet(-blob.length);
+		}
+		if (blob.isUnused()) {
+			blobs.remove(id);
+			deleteFile(blob.file);
+			size.addAndGet(-blob.length);
+		}
+	}
+
+	/** Charges {@code partition} for {@code blob} on its first reference. */
+	private void reference(Blob blob, int partition) {
+		if (blob.references[partition]++ == 0) {
+			partitionSizes[partition].addAndGet(blob.length);
+		}
+	}
+
+	/** Returns a nonzero id from the digest of {@code file}'s content. */
+	private static long idOf(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[IO_BUFFER_SIZE];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+		byte[] hash = digest.digest();
+		long id = 0;
+		for (int i = 0; i < 8; i++) {
+			id = (id << 8) | (hash[i] & 0xff);
+		}
+		return id != 0 ? id : 1;
+	}
+
+	private static long parseId(String hex) {
+		if (hex.length() == 0 || hex.length() > 16) {
+			throw new NumberFormatException(hex);
+		}
+		long id = 0;
+		for (int i = 0; i < hex.length(); i++) {
+			int digit = Character.digit(hex.charAt(i), 16);
+			if (digit == -1) {
+				throw new NumberFormatException(hex);
+			}
+			id = (id << 4) | digit;
+		}
+		return id;
+	}
+
+	private static boolean contentEquals(File a, File b) throws IOException {
+		InputStream inA = new BufferedInputStream(new FileInputStream(a),
+				IO_BUFFER_SIZE);
+		try {
+			InputStream inB = new BufferedInputStream(new FileInputStream(b),
+					IO_BUFFER_SIZE);
+			try {
+				int byteA;
+				do {
+					byteA = inA.read();
+					if (byteA != inB.read()) {
+						return false;
+					}
+				} while (byteA != -1);
+				return true;
+			} finally {
+				inB.close();
+			}
+		} finally {
+			inA.close();
+		}
+	}
+
+	private static void deleteFile(File file) throws IOException {
+		if (file.exists() && !file.delete()) {
+			throw new IOException("failed to delete " + file);
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package com.skripiio.imagespark.cache.disk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The format of the bundles written by {@link DiskLruCache#exportBundle} and
+ * read by {@link DiskLruCache#importBundle}, which carry a cache's entries in
+ * a single stream.
+ *
+ * <p>
+ * A bundle starts with the same 20 byte header as a journal, with its own
+ * magic number. Each entry follows as a tag byte, the key and the partition
+ * name (empty for the default partition) in modified UTF-8, one big-endian
+ * long per value length, the values themselves, and the CRC32 of everything
+ * after the tag. A last tag and the number of entries end the bundle, so a
+ * truncated bundle is told apart from a complete one. Entries are checked one
+ * at a time as they are read, so a reader never needs to hold more than one
+ * value.
+ */
+final class CacheBundle {
+	static final int MAGIC = 0x444c5242; // "DLRB"
+	static final int VERSION = 1;
+
+	private static final byte END = 0;
+	private static final byte ENTRY = 1;
+
+	private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+	private CacheBundle() {
+	}
+
+	private static int headerChecksum(int appVersion, int valueCount) {
+		CRC32 crc = new CRC32();
+		for (int value : new int[] { MAGIC, VERSION, appVersion, valueCount }) {
+			crc.update(value >>> 24);
+			crc.update(value >>> 16);
+			crc.update(value >>> 8);
+			crc.update(value);
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Copies exactly {@code length} bytes, or skips them if {@code out} is
+	 * null.
+	 */
+	private static void copy(InputStream in, OutputStream out, long length,
+			byte[] buffer) throws IOException {
+		while (length > 0) {
+			int count = in.read(buffer, 0,
+					(int) Math.min(buffer.length, length));
+			if (count == -1) {
+				throw new EOFException(length + " bytes missing");
+			}
+			if (out != null) {
+				out.write(buffer, 0, count);
+			}
+			length -= count;
+		}
+	}
+
+	/** Writes a bundle. Not thread safe. */
+	static final class Writer {
+		private final CRC32 crc = new CRC32();
+		private final DataOutputStream out;
+		private final int valueCount;
+		private final byte[] buffer = new byte[IO_BUFFER_SIZE];
+		private int entryCount;
+
+		Writer(OutputStream out, int appVersion, int valueCount)
+				throws IOException {
+			this.out = new DataOutputStream(new CheckedOutputStream(
+					new BufferedOutputStream(out, IO_BUFFER_SIZE), crc));
+			this.valueCount = valueCount;
+			this.out.writeInt(MAGIC);
+			this.out.writeInt(VERSION);
+			this.out.writeInt(appVersion);
+			this.out.writeInt(valueCount);
+			this.out.writeInt(headerChecksum(appVersion, valueCount));
+		}
+
+		/**
+		 * Writes an entry whose values are read from {@code values}, each of
+		 * which must hold at least as many bytes as its length.
+		 *
+		 * @param partition
+		 *            the partition's name, or null for the default partition
+		 */
+		void writeEntry(String key, String partition, long[] lengths,
+				InputStream[] values) throws IOException {
+			out.writeByte(ENTRY);
+			crc.reset();
+			out.writeUTF(key);
+			out.writeUTF(partition != null ? partition : "");
+			for (int i = 0; i < valueCount; i++) {
+				out.writeLong(lengths[i]);
+			}
+			for (int i = 0; i < valueCount; i++) {
+				copy(values[i], out, lengths[i], buffer);
+			}
+			out.writeInt((int) crc.getValue());
+			entryCount++;
+		}
+
+		/** Ends the bundle and flushes it, leaving the stream open. */
+		void finish() throws IOException {
+			out.writeByte(END);
+			out.writeInt(entryCount);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Reads a bundle one entry at a time. Call {@link #next} to read an
+	 * entry's key, partition and lengths, and then {@link #readValues} to
+	 * read and check its values. Not thread safe.
+	 */
+	static final class Reader {
+		private final CRC32 crc = new CRC32();
+		private final DataInputStream in;
+		private final int valueCount;
+		private final long[] lengths;
+		private final byte[] buffer = new byte[IO_BUFFER_SIZE];
+		private String key;
+		private String partition;
+		private int entryCount;
+
+		/**
+		 * @throws IOException
+		 *             if the stream isn't a bundle written for this app
+		 *             version and value count
+		 */
+		Reader(InputStream in, int appVersion, int valueCount)
+				throws IOException {
+			this.in = new DataInputStream(new CheckedInputStream(
+					new BufferedInputStream(in, IO_BUFFER_SIZE), crc));
+			this.valueCount = valueCount;
+			this.lengths = new long[valueCount];
+			int magic = this.in.readInt();
+			int version = this.in.readInt();
+			int bundleAppVersion = this.in.readInt();
+			int bundleValueCount = this.in.readInt();
+			int checksum = this.in.readInt();
+			if (magic != MAGIC || version != VERSION) {
+				throw new IOException("not a cache bundle");
+			}
+			if (checksum != headerChecksum(bundleAppVersion, bundleValueCount)) {
+				throw new IOException("bundle header is corrupt");
+			}
+			if (bundleAppVersion != appVersion || bundleValueCount != valueCount) {
+				throw new IOException("bundle is for app version "
+						+ bundleAppVersion + " with " + bundleValueCount
+						+ " values");
+			}
+		}
+
+		/**
+		 * Reads the next entry's key, partition and lengths.
+		 *
+		 * @return false at the end of the bundle
+		 */
+		boolean next() throws IOException {
+			byte tag = in.readByte();
+			if (tag == END) {
+				if (in.readInt() != entryCount) {
+					throw new IOException("bundle entry count mismatch");
+				}
+				return false;
+			}
+			if (tag != ENTRY) {
+				throw new IOException("unexpected bundle tag " + tag);
+			}
+			crc.reset();
+			key = in.readUTF();
+			partition = in.readUTF();
+			for (int i = 0; i < valueCount; i++) {
+				lengths[i] = in.readLong();
+				if (lengths[i] < 0) {
+					throw new IOException("negative length in bundle entry "
+							+ key);
+				}
+			}
+			return true;
+		}
+
+		String key() {
+			return key;
+		}
+
+		/** Returns the entry's partition, or null for the default one. */
+		String partition() {
+			return partition.length() > 0 ? partition : null;
+		}
+
+		long length(int index) {
+			return lengths[index];
+		}
+
+		/**
+		 * Copies the entry's values to {@code outs}, skipping those whose
+		 * stream is null, and checks them against the entry's checksum. The
+		 * streams aren't closed.
+		 *
+		 * @throws IOException
+		 *             if the entry is damaged, in which case its values must
+		 *             be discarded
+		 */
+		void readValues(OutputStream[] outs) throws IOException {
+			for (int i = 0; i < valueCount; i++) {
+				copy(in, outs[i], lengths[i], buffer);
+			}
+			int expected = (int) crc.getValue();
+			if (in.readInt() != expected) {
+				throw new IOException("bundle entry " + key + " is corrupt");
+			}
+			entryCount++;
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package com.skripiio.imagespark.cache.disk;
+
+/**
+ * The statistics of a {@link DiskLruCache} at one moment, as returned by
+ * {@link DiskLruCache#stats}. Counts are cumulative since the cache was
+ * opened; subtract an earlier snapshot with {@link #minus} to get the
+ * activity in between.
+ */
+public final class CacheStats {
+	private final long hitCount;
+	private final long missCount;
+	private final long evictionCount;
+	private final long evictedBytes;
+	private final long bytesRead;
+	private final long bytesWritten;
+	private final long journalRebuildCount;
+	private final Latency getLatency;
+	private final Latency editLatency;
+	private final Latency commitLatency;
+
+	CacheStats(long hitCount, long missCount, long evictionCount,
+			long evictedBytes, long bytesRead, long bytesWritten,
+			long journalRebuildCount, Latency getLatency, Latency editLatency,
+			Latency commitLatency) {
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+		this.evictionCount = evictionCount;
+		this.evictedBytes = evictedBytes;
+		this.bytesRead = bytesRead;
+		this.bytesWritten = bytesWritten;
+		this.journalRebuildCount = journalRebuildCount;
+		this.getLatency = getLatency;
+		this.editLatency = editLatency;
+		this.commitLatency = commitLatency;
+	}
+
+	/** Returns the number of lookups that returned a snapshot. */
+	public long hitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Returns the number of lookups that found nothing readable, including
+	 * those that gave up waiting for a lazily opened cache.
+	 */
+	public long missCount() {
+		return missCount;
+	}
+
+	/** Returns the fraction of lookups that hit, or 1 if there were none. */
+	public double hitRate() {
+		long requests = hitCount + missCount;
+		return requests == 0 ? 1.0 : (double) hitCount / requests;
+	}
+
+	/** Returns the number of entries removed to stay within the budget. */
+	public long evictionCount() {
+		return evictionCount;
+	}
+
+	/** Returns the total size of the evicted entries. */
+	public long evictedBytes() {
+		return evictedBytes;
+	}
+
+	/** Returns the total size of the values in the snapshots handed out. */
+	public long bytesRead() {
+		return bytesRead;
+	}
+
+	/** Returns the total size of the values written by committed edits. */
+	public long bytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Returns the number of times a journal was rewritten to drop redundant
+	 * records or to recover from damage or an older layout.
+	 */
+	public long journalRebuildCount() {
+		return journalRebuildCount;
+	}
+
+	/** Returns how long {@link DiskLruCache#get} took. */
+	public Latency getLatency() {
+		return getLatency;
+	}
+
+	/** Returns how long {@link DiskLruCache#edit} took to hand out an editor. */
+	public Latency editLatency() {
+		return editLatency;
+	}
+
+	/** Returns how long {@link DiskLruCache.Editor#commit} took. */
+	public Latency commitLatency() {
+		return commitLatency;
+	}
+
+	/**
+	 * Returns the statistics of what happened between {@code earlier} and
+	 * this snapshot.
+	 */
+	public CacheStats minus(CacheStats earlier) {
+		return new CacheStats(hitCount - earlier.hitCount, missCount
+				- earlier.missCount, evictionCount - earlier.evictionCount,
+				evictedBytes - earlier.evictedBytes, bytesRead
+						- earlier.bytesRead, bytesWritten
+						- earlier.bytesWritten, journalRebuildCount
+						- earlier.journalRebuildCount,
+				getLatency.minus(earlier.getLatency),
+				editLatency.minus(earlier.editLatency),
+				commitLatency.minus(earlier.commitLatency));
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStats[hits=" + hitCount + ",misses=" + missCount
+				+ ",evictions=" + evictionCount + ",evictedBytes="
+				+ evictedBytes + ",bytesRead=" + bytesRead + ",bytesWritten="
+				+ bytesWritten + ",journalRebuilds=" + journalRebuildCount
+				+ ",get=" + getLatency + ",edit=" + editLatency + ",commit="
+				+ commitLatency + "]";
+	}
+
+	/**
+	 * A histogram of operation times. Bucket {@code i} counts the operations
+	 * that took less than 2<sup>i</sup> microseconds but not less than the
+	 * bucket before it; the last bucket also counts everything slower.
+	 */
+	public static final class Latency {
+		/** Buckets up to 2^24 microseconds, about 17 seconds. */
+		public static final int BUCKET_COUNT = 25;
+
+		private final long[] counts;
+		private final long totalNanos;
+
+		Latency(long[] counts, long totalNanos) {
+			this.counts = counts;
+			this.totalNanos = totalNanos;
+		}
+
+		/** Returns the bucket that an operation of {@code nanos} falls in. */
+		static int bucketOf(long nanos) {
+			long micros = nanos / 1000;
+			return Math.min(64 - Long.numberOfLeadingZeros(micros),
+					BUCKET_COUNT - 1);
+		}
+
+		/** Returns the number of operations measured. */
+		public long count() {
+			long count = 0;
+			for (long bucket : counts) {
+				count += bucket;
+			}
+			return count;
+		}
+
+		/** Returns the number of operations in bucket {@code index}. */
+		public long bucketCount(int index) {
+			return counts[index];
+		}
+
+		/** Returns the mean time in microseconds, or 0 with no operations. */
+		public double meanMicros() {
+			long count = count();
+			return count == 0 ? 0 : totalNanos / 1000.0 / count;
+		}
+
+		/**
+		 * Returns an upper bound in microseconds on the time that a fraction
+		 * {@code quantile} of the operations took at most, e.g. 0.99 for the
+		 * 99th percentile. The bound is the end of the bucket the percentile
+		 * falls in, so it can be up to twice the actual value. Returns 0 with
+		 * no operations.
+		 */
+		public long percentileMicros(double quantile) {
+			long count = count();
+			if (count == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(quantile * count);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && counts[i] > 0) {
+					return 1L << i;
+				}
+			}
+			return 1L << (counts.length - 1);
+		}
+
+		Latency minus(Latency earlier) {
+			long[] difference = new long[counts.length];
+			for (int i = 0; i < counts.length; i++) {
+				difference[i] = counts[i] - earlier.counts[i];
+			}
+			return new Latency(difference, totalNanos - earlier.totalNanos);
+		}
+
+		@Override
+		public String toString() {
+			return "[count=" + count() + ",mean=" + (long) meanMicros()
+					+ "us,p50=" + percentileMicros(0.5) + "us,p99="
+					+ percentileMicros(0.99) + "us]";
+		}
+	}
+}
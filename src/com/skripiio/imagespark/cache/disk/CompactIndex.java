@@ -0,0 +1,403 @@
+package com.skripiio.imagespark.cache.disk;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The published entries of one shard of a {@link DiskLruCache} opened with
+ * {@link DiskLruCache.Options#setCompactIndex}, held in one primitive array
+ * instead of several objects per entry. Keys are the 128 bit digests that
+ * {@link com.skripiio.imagespark.util.Md5FileNameGenerator} writes in base 36,
+ * stored as two longs; the table is open addressed with linear probing.
+ *
+ * <p>
+ * An entry is described by a record of longs: its kind and partition, its
+ * sequence number, when it was last used, the lengths of its values and
+ * where they are stored. Records are copied in and out, so nothing refers
+ * into the table.
+ *
+ * <p>
+ * Only the holder of the shard's lock modifies the index. Readers take no
+ * lock: {@link #get} copies a record and retries if the index was modified
+ * meanwhile.
+ */
+final class CompactIndex {
+	/** Where each value is stored, the kind field of a record's meta. */
+	static final int KIND_FILES = 0;
+	static final int KIND_PACKED = 1;
+	static final int KIND_BLOBS = 2;
+
+	/** The offsets of a record's fields. */
+	static final int META = 0;
+	static final int SEQUENCE = 1;
+	static final int LAST_ACCESS = 2;
+	static final int LENGTHS = 3;
+
+	/** The longest key in base 36 below 2^128. */
+	private static final int MAX_KEY_LENGTH = 25;
+
+	private static final int MIN_CAPACITY = 16;
+
+	/**
+	 * How full a table may get, and how full it is once it has grown. Tables
+	 * aren't sized in powers of two, so they can grow by a third rather than
+	 * double and stay between the two.
+	 */
+	static final int MAX_LOAD_PERCENT = 80;
+	private static final int RESIZED_LOAD_PERCENT = 60;
+
+	/** A slot is a key and a record, whose meta also holds the slot's state. */
+	private static final int KEY_HI = 0;
+	private static final int KEY_LO = 1;
+	private static final int RECORD = 2;
+	private static final int STATE_SHIFT = 16;
+	private static final long META_MASK = (1L << STATE_SHIFT) - 1;
+
+	private static final long FREE = 0;
+	private static final long LIVE = 1;
+
+	/** Present but not readable while its values are replaced. */
+	private static final long HIDDEN = 2;
+
+	/** Removed, but still part of the probe sequences of other keys. */
+	private static final long DELETED = 3;
+
+	private final int valueCount;
+	private final int recordSize;
+	private final int stride;
+
+	/** Odd while the index is being modified. */
+	private final AtomicLong stamp = new AtomicLong();
+
+	private volatile AtomicLongArray table;
+	private int capacity;
+
+	/** Slots that are live or hidden. */
+	private int size;
+
+	/** Slots that aren't free, including deleted ones. */
+	private int used;
+
+	CompactIndex(int valueCount) {
+		this.valueCount = valueCount;
+		this.recordSize = LENGTHS + 2 * valueCount;
+		this.stride = RECORD + recordSize;
+		this.capacity = MIN_CAPACITY;
+		this.table = new AtomicLongArray(capacity * stride);
+	}
+
+	/** Returns the meta field of a record. */
+	static long meta(int kind, int partition) {
+		return kind | (partition << 8);
+	}
+
+	static int kindOf(long meta) {
+		return (int) (meta & 0xff);
+	}
+
+	static int partitionOf(long meta) {
+		return (int) ((meta >>> 8) & 0xff);
+	}
+
+	/** Returns the number of longs in a record. */
+	int recordSize() {
+		return recordSize;
+	}
+
+	/** Returns the offset of the locations or blob ids in a record. */
+	int refsOffset() {
+		return LENGTHS + valueCount;
+	}
+
+	/**
+	 * Returns true if {@code key} can be held by a compact index: a number
+	 * below 2^128 in base 36, lower case, without leading zeros.
+	 */
+	static boolean isCompactKey(String key) {
+		return parse(key, new long[2]);
+	}
+
+	/**
+	 * Returns a copy of the record of {@code key}, or null if it isn't
+	 * readable.
+	 */
+	long[] get(String key) {
+		long[] parsed = new long[2];
+		if (!parse(key, parsed)) {
+			return null;
+		}
+		while (true) {
+			long before = stamp.get();
+			if ((before & 1) != 0) {
+				Thread.yield(); // being modified
+				continue;
+			}
+			AtomicLongArray t = table;
+			int slot = find(t, parsed[0], parsed[1]);
+			long[] record = null;
+			if (slot >= 0 && stateAt(t, slot) == LIVE) {
+				record = new long[recordSize];
+				for (int i = 0; i < recordSize; i++) {
+					record[i] = t.get(slot * stride + RECORD + i);
+				}
+				record[META] &= META_MASK;
+			}
+			if (stamp.get() == before) {
+				return record;
+			}
+		}
+	}
+
+	/** Inserts or replaces the record of {@code key}, making it readable. */
+	void put(String key, long[] record) {
+		long[] parsed = parseOrThrow(key);
+		beginWrite();
+		try {
+			if (used + 1 > capacity * MAX_LOAD_PERCENT / 100) {
+				resize();
+			}
+			int slot = find(table, parsed[0], parsed[1]);
+			if (slot < 0) {
+				slot = insertionSlot(table, parsed[0], parsed[1]);
+				if (stateAt(table, slot) == FREE) {
+					used++;
+				}
+				table.set(slot * stride + KEY_HI, parsed[0]);
+				table.set(slot * stride + KEY_LO, parsed[1]);
+				size++;
+			}
+			for (int i = 1; i < recordSize; i++) {
+				table.set(slot * stride + RECORD + i, record[i]);
+			}
+			table.set(slot * stride + RECORD + META, record[META]
+					| (LIVE << STATE_SHIFT));
+		} finally {
+			endWrite();
+		}
+	}
+
+	/**
+	 * Keeps readers away from {@code key} until it is put again, while the
+	 * files its record points at are replaced.
+	 */
+	void hide(String key) {
+		setState(key, HIDDEN);
+	}
+
+	void remove(String key) {
+		setState(key, DELETED);
+	}
+
+	/** Sets when {@code key} was last used, if it is present. */
+	void setLastAccess(String key, long lastAccess) {
+		long[] parsed = parseOrThrow(key);
+		int slot = find(table, parsed[0], parsed[1]);
+		if (slot >= 0) {
+			// readers don't compare this field, so it needn't be stamped
+			table.set(slot * stride + RECORD + LAST_ACCESS, lastAccess);
+		}
+	}
+
+	/** Returns the number of entries, readable or hidden. */
+	int size() {
+		return size;
+	}
+
+	/** Returns the keys of the entries, readable or hidden. */
+	List<String> keys() {
+		List<String> keys = new ArrayList<String>(size);
+		AtomicLongArray t = table;
+		for (int slot = 0; slot < capacity; slot++) {
+			long state = stateAt(t, slot);
+			if (state == LIVE || state == HIDDEN) {
+				keys.add(format(t.get(slot * stride + KEY_HI),
+						t.get(slot * stride + KEY_LO)));
+			}
+		}
+		return keys;
+	}
+
+	void clear() {
+		beginWrite();
+		try {
+			capacity = MIN_CAPACITY;
+			table = new AtomicLongArray(capacity * stride);
+			size = 0;
+			used = 0;
+		} finally {
+			endWrite();
+		}
+	}
+
+	private void setState(String key, long state) {
+		long[] parsed = parseOrThrow(key);
+		int slot = find(table, parsed[0], parsed[1]);
+		if (slot < 0) {
+			return;
+		}
+		beginWrite();
+		try {
+			setStateAt(slot, state);
+			if (state == DELETED) {
+				size--;
+			}
+		} finally {
+			endWrite();
+		}
+	}
+
+	private long stateAt(AtomicLongArray t, int slot) {
+		return t.get(slot * stride + RECORD + META) >>> STATE_SHIFT;
+	}
+
+	private void setStateAt(int slot, long state) {
+		int offset = slot * stride + RECORD + META;
+		table.set(offset, (table.get(offset) & META_MASK)
+				| (state << STATE_SHIFT));
+	}
+
+	private void beginWrite() {
+		stamp.incrementAndGet();
+	}
+
+	private void endWrite() {
+		stamp.incrementAndGet();
+	}
+
+	/**
+	 * Returns the slot holding the key, live or hidden, or -1. Gives up after
+	 * visiting every slot, which can only happen to a reader racing a writer.
+	 */
+	private int find(AtomicLongArray t, long hi, long lo) {
+		int slots = t.length() / stride;
+		int slot = hash(hi, lo, slots);
+		for (int probes = 0; probes < slots; probes++) {
+			long state = stateAt(t, slot);
+			if (state == FREE) {
+				return -1;
+			}
+			if (state != DELETED && t.get(slot * stride + KEY_HI) == hi
+					&& t.get(slot * stride + KEY_LO) == lo) {
+				return slot;
+			}
+			slot = slot + 1 < slots ? slot + 1 : 0;
+		}
+		return -1;
+	}
+
+	/** Returns the first free or deleted slot for a key that is absent. */
+	private int insertionSlot(AtomicLongArray t, long hi, long lo) {
+		int slots = t.length() / stride;
+		int slot = hash(hi, lo, slots);
+		while (true) {
+			long state = stateAt(t, slot);
+			if (state == FREE || state == DELETED) {
+				return slot;
+			}
+			slot = slot + 1 < slots ? slot + 1 : 0;
+		}
+	}
+
+	/**
+	 * Copies the entries into a larger table, dropping the deleted slots.
+	 * Readers holding the old table see a consistent but stale index, and
+	 * retry because the stamp moved.
+	 */
+	private void resize() {
+		int newCapacity = newCapacity(size);
+		AtomicLongArray old = table;
+		AtomicLongArray t = new AtomicLongArray(newCapacity * stride);
+		for (int slot = 0; slot < capacity; slot++) {
+			long state = stateAt(old, slot);
+			if (state != LIVE && state != HIDDEN) {
+				continue;
+			}
+			long hi = old.get(slot * stride + KEY_HI);
+			long lo = old.get(slot * stride + KEY_LO);
+			int target = insertionSlot(t, hi, lo);
+			for (int i = 0; i < stride; i++) {
+				t.set(target * stride + i, old.get(slot * stride + i));
+			}
+		}
+		capacity = newCapacity;
+		used = size;
+		table = t;
+	}
+
+	/**
+	 * Returns the size of a table for {@code size} entries and one more, which
+	 * they fill to {@link #RESIZED_LOAD_PERCENT}.
+	 */
+	static int newCapacity(int size) {
+		return Math.max(MIN_CAPACITY,
+				(int) ((size + 1) * 100L / RESIZED_LOAD_PERCENT) + 1);
+	}
+
+	/** Returns the first slot to probe for a key, of {@code slots} slots. */
+	static int hash(long hi, long lo, int slots) {
+		// the keys are digests, so their bits are already well mixed
+		return ((int) (lo ^ (lo >>> 32) ^ hi) & 0x7fffffff) % slots;
+	}
+
+	private static long[] parseOrThrow(String key) {
+		long[] parsed = new long[2];
+		if (!parse(key, parsed)) {
+			throw new IllegalArgumentException("not a compact key: " + key);
+		}
+		return parsed;
+	}
+
+	/**
+	 * Reads {@code key} as an unsigned 128 bit number in base 36 into
+	 * {@code into}, high half first. Returns false if it isn't one, or isn't
+	 * written the way {@link #format} would write it.
+	 */
+	static boolean parse(String key, long[] into) {
+		if (key.length() == 0 || key.length() > MAX_KEY_LENGTH
+				|| (key.charAt(0) == '0' && key.length() > 1)) {
+			return false;
+		}
+		// four 32 bit limbs, the least significant first
+		long l0 = 0, l1 = 0, l2 = 0, l3 = 0;
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			long carry;
+			if (c >= '0' && c <= '9') {
+				carry = c - '0';
+			} else if (c >= 'a' && c <= 'z') {
+				carry = c - 'a' + 10;
+			} else {
+				return false;
+			}
+			l0 = l0 * 36 + carry;
+			carry = l0 >>> 32;
+			l0 &= 0xffffffffL;
+			l1 = l1 * 36 + carry;
+			carry = l1 >>> 32;
+			l1 &= 0xffffffffL;
+			l2 = l2 * 36 + carry;
+			carry = l2 >>> 32;
+			l2 &= 0xffffffffL;
+			l3 = l3 * 36 + carry;
+			if ((l3 >>> 32) != 0) {
+				return false; // 2^128 or more
+			}
+		}
+		into[0] = (l3 << 32) | l2;
+		into[1] = (l1 << 32) | l0;
+		return true;
+	}
+
+	/** Writes the unsigned 128 bit number (hi, lo) in base 36. */
+	static String format(long hi, long lo) {
+		byte[] bytes = new byte[16];
+		for (int i = 0; i < 8; i++) {
+			bytes[i] = (byte) (hi >>> (56 - 8 * i));
+			bytes[8 + i] = (byte) (lo >>> (56 - 8 * i));
+		}
+		return new BigInteger(1, bytes).toString(36);
+	}
+}
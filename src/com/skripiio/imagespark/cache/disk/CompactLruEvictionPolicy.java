@@ -0,0 +1,170 @@
+package com.skripiio.imagespark.cache.disk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Evicts the least recently used entry first, like
+ * {@link LruEvictionPolicy}, but without an object per entry: keys are held
+ * as two longs in open addressed arrays, and the order of use is a doubly
+ * linked list threaded through int arrays. This is the default policy of a
+ * cache opened with {@link DiskLruCache.Options#setCompactIndex}, and it only
+ * accepts the keys such a cache does.
+ */
+public final class CompactLruEvictionPolicy implements EvictionPolicy {
+	private static final int NONE = -1;
+
+	private static final byte FREE = 0;
+	private static final byte LIVE = 1;
+	private static final byte DELETED = 2;
+
+	private int capacity = CompactIndex.newCapacity(0);
+	private long[] keyHi = new long[capacity];
+	private long[] keyLo = new long[capacity];
+	private byte[] states = new byte[capacity];
+
+	/** The links of the list, from the least recently used to the most. */
+	private int[] previous = new int[capacity];
+	private int[] next = new int[capacity];
+	private int head = NONE;
+	private int tail = NONE;
+
+	private int size;
+
+	/** Slots that aren't free, including deleted ones. */
+	private int used;
+
+	private final long[] parsed = new long[2];
+
+	@Override
+	public void setMaxSize(long maxSize) {
+	}
+
+	@Override
+	public void recordWrite(String key, long size) {
+		parse(key);
+		int slot = find(parsed[0], parsed[1]);
+		if (slot != NONE) {
+			unlink(slot);
+		} else {
+			if (used + 1 > capacity * CompactIndex.MAX_LOAD_PERCENT / 100) {
+				resize();
+			}
+			slot = insert(parsed[0], parsed[1]);
+		}
+		linkLast(slot);
+	}
+
+	@Override
+	public void recordAccess(String key) {
+		parse(key);
+		int slot = find(parsed[0], parsed[1]);
+		if (slot != NONE) {
+			unlink(slot);
+			linkLast(slot);
+		}
+	}
+
+	@Override
+	public void recordRemoval(String key) {
+		parse(key);
+		int slot = find(parsed[0], parsed[1]);
+		if (slot != NONE) {
+			unlink(slot);
+			states[slot] = DELETED;
+			size--;
+		}
+	}
+
+	@Override
+	public List<String> victims(int count) {
+		List<String> victims = new ArrayList<String>(Math.min(count, size));
+		for (int slot = head; slot != NONE && victims.size() < count; slot = next[slot]) {
+			victims.add(CompactIndex.format(keyHi[slot], keyLo[slot]));
+		}
+		return victims;
+	}
+
+	private void parse(String key) {
+		if (!CompactIndex.parse(key, parsed)) {
+			throw new IllegalArgumentException("not a compact key: " + key);
+		}
+	}
+
+	private int find(long hi, long lo) {
+		int slot = CompactIndex.hash(hi, lo, capacity);
+		while (states[slot] != FREE) {
+			if (states[slot] == LIVE && keyHi[slot] == hi && keyLo[slot] == lo) {
+				return slot;
+			}
+			slot = slot + 1 < capacity ? slot + 1 : 0;
+		}
+		return NONE;
+	}
+
+	/** Takes a free or deleted slot for a key that is absent. */
+	private int insert(long hi, long lo) {
+		int slot = CompactIndex.hash(hi, lo, capacity);
+		while (states[slot] == LIVE) {
+			slot = slot + 1 < capacity ? slot + 1 : 0;
+		}
+		if (states[slot] == FREE) {
+			used++;
+		}
+		states[slot] = LIVE;
+		keyHi[slot] = hi;
+		keyLo[slot] = lo;
+		size++;
+		return slot;
+	}
+
+	private void linkLast(int slot) {
+		previous[slot] = tail;
+		next[slot] = NONE;
+		if (tail != NONE) {
+			next[tail] = slot;
+		} else {
+			head = slot;
+		}
+		tail = slot;
+	}
+
+	private void unlink(int slot) {
+		if (previous[slot] != NONE) {
+			next[previous[slot]] = next[slot];
+		} else {
+			head = next[slot];
+		}
+		if (next[slot] != NONE) {
+			previous[next[slot]] = previous[slot];
+		} else {
+			tail = previous[slot];
+		}
+	}
+
+	/**
+	 * Moves the keys into larger arrays, dropping the deleted slots and
+	 * keeping the order of use.
+	 */
+	private void resize() {
+		int newCapacity = CompactIndex.newCapacity(size);
+		long[] oldHi = keyHi;
+		long[] oldLo = keyLo;
+		int[] oldNext = next;
+		int oldHead = head;
+
+		capacity = newCapacity;
+		keyHi = new long[capacity];
+		keyLo = new long[capacity];
+		states = new byte[capacity];
+		previous = new int[capacity];
+		next = new int[capacity];
+		head = NONE;
+		tail = NONE;
+		size = 0;
+		used = 0;
+		for (int slot = oldHead; slot != NONE; slot = oldNext[slot]) {
+			linkLast(insert(oldHi[slot], oldLo[slot]));
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package com.skripiio.imagespark.cache.disk;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where a {@link DiskLruCache} keeps the files of its values: either flat in
+ * the cache directory, or spread over levels of 256 subdirectories named by
+ * a hash of the file name, so that no directory holds more than a few
+ * hundred files however large the cache grows. The journals and segments
+ * always stay in the cache directory itself.
+ *
+ * <p>
+ * The number of levels a cache was last opened with is kept in a file beside
+ * the journals, and the files are moved when it is opened with another.
+ */
+final class DirectoryLayout {
+	/** Records the number of levels. Its name keeps it out of the sweeps. */
+	static final String LAYOUT_FILE = DiskLruCache.JOURNAL_FILE + ".layout";
+	private static final String LAYOUT_FILE_TMP = LAYOUT_FILE + ".tmp";
+
+	static final int MAX_LEVELS = 3;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final File directory;
+	private final int levels;
+
+	DirectoryLayout(File directory, int levels) {
+		this.directory = directory;
+		this.levels = levels;
+	}
+
+	/**
+	 * Returns the file named {@code name}. The value files of one entry are
+	 * all named after its key, up to the first dot, and share a directory.
+	 */
+	File fileFor(String name) {
+		if (levels == 0) {
+			return new File(directory, name);
+		}
+		int hash = hash(stemOf(name));
+		StringBuilder path = new StringBuilder(levels * 3 + name.length());
+		for (int level = 0; level < levels; level++) {
+			int b = (hash >>> (8 * level)) & 0xff;
+			path.append(HEX_DIGITS[b >>> 4]).append(HEX_DIGITS[b & 0xf])
+					.append(File.separatorChar);
+		}
+		return new File(directory, path.append(name).toString());
+	}
+
+	/** Creates the directory {@code file} goes in, if it doesn't exist yet. */
+	void makeDirectoryFor(File file) {
+		if (levels > 0) {
+			file.getParentFile().mkdirs();
+		}
+	}
+
+	/**
+	 * Returns the files where this layout puts value files: those in the
+	 * cache directory when it's flat, otherwise those in the subdirectories
+	 * of the deepest level.
+	 */
+	List<File> listFiles() {
+		List<File> files = new ArrayList<File>();
+		collectFiles(directory, levels, levels, files);
+		return files;
+	}
+
+	/**
+	 * Moves the value files to where this layout puts them if the cache was
+	 * last opened with another number of levels, or with none recorded, as
+	 * caches written before fan-out were. Every level is searched, so a move
+	 * interrupted by a crash is finished the next time.
+	 */
+	void migrate() throws IOException {
+		directory.mkdirs();
+		if (readLevels() == levels) {
+			return;
+		}
+		List<File> files = new ArrayList<File>();
+		collectFiles(directory, 0, MAX_LEVELS, files);
+		for (File file : files) {
+			String name = file.getName();
+			if (file.getParentFile().equals(directory) && isReserved(name)) {
+				continue;
+			}
+			File target = fileFor(name);
+			if (target.equals(file)) {
+				continue;
+			}
+			makeDirectoryFor(target);
+			if (!file.renameTo(target)) {
+				throw new IOException("failed to move " + file + " to " + target);
+			}
+		}
+		deleteEmptySubdirectories(directory, MAX_LEVELS);
+		writeLevels();
+	}
+
+	/**
+	 * Records the number of levels, for a cache whose directory has just been
+	 * created or emptied.
+	 */
+	void writeLevels() throws IOException {
+		File tmp = new File(directory, LAYOUT_FILE_TMP);
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(Integer.toString(levels).getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(new File(directory, LAYOUT_FILE))) {
+			throw new IOException("failed to rename " + tmp);
+		}
+	}
+
+	/** Returns the recorded number of levels, or 0 if none is recorded. */
+	private int readLevels() {
+		File file = new File(directory, LAYOUT_FILE);
+		if (!file.exists()) {
+			return 0;
+		}
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				byte[] buffer = new byte[8];
+				int length = in.read(buffer);
+				return Integer.parseInt(new String(buffer, 0,
+						Math.max(length, 0), "US-ASCII"));
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return -1; // unknown, so search every level
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/** Journals, segments and the layout file never move. */
+	private static boolean isReserved(String name) {
+		return name.startsWith(DiskLruCache.JOURNAL_FILE)
+				|| name.startsWith(SegmentStore.SEGMENT_FILE_PREFIX);
+	}
+
+	/**
+	 * Adds the files found in {@code dir} and its subdirectories whose depth
+	 * is between {@code minDepth} and {@code maxDepth}, descending only into
+	 * directories this layout could have made.
+	 */
+	private static void collectFiles(File dir, int minDepth, int maxDepth,
+			List<File> files) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			if (child.isDirectory()) {
+				if (maxDepth > 0 && isLevelName(child.getName())) {
+					collectFiles(child, minDepth - 1, maxDepth - 1, files);
+				}
+			} else if (minDepth <= 0) {
+				files.add(child);
+			}
+		}
+	}
+
+	private static void deleteEmptySubdirectories(File dir, int maxDepth) {
+		File[] children = dir.listFiles();
+		if (children == null || maxDepth == 0) {
+			return;
+		}
+		for (File child : children) {
+			if (child.isDirectory() && isLevelName(child.getName())) {
+				deleteEmptySubdirectories(child, maxDepth - 1);
+				child.delete(); // fails unless empty
+			}
+		}
+	}
+
+	private static boolean isLevelName(String name) {
+		return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0
+				&& Character.digit(name.charAt(1), 16) >= 0;
+	}
+
+	/**
+	 * The key of a value file, or the whole name of a blob, whose names all
+	 * share a prefix.
+	 */
+	private static String stemOf(String name) {
+		if (name.startsWith(BlobStore.BLOB_FILE_PREFIX)) {
+			return name;
+		}
+		int dot = name.indexOf('.');
+		return dot < 0 ? name : name.substring(0, dot);
+	}
+
+	/** Spreads the bits of the name's hash code, which must not change. */
+	private static int hash(String stem) {
+		int h = stem.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -18,35 +18,49 @@ package com.skripiio.imagespark.cache.disk;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
@@ -69,10 +83,49 @@ import com.skripiio.imagespark.util.Utils;
  * <p>
  * This cache limits the number of bytes that it will store on the filesystem.
  * When the number of stored bytes exceeds the limit, the cache will remove
- * entries in the background until the limit is satisfied. The limit is not
- * strict: the cache may temporarily exceed it while waiting for files to be
- * deleted. The limit does not include filesystem overhead or the cache journal
- * so space-sensitive applications should set a conservative limit.
+ * entries in the background until it is back under a low watermark, a little
+ * below the limit, so that it doesn't go back over with the next write. The
+ * limit is not strict: the cache may temporarily exceed it while waiting for
+ * files to be deleted. The limit does not include filesystem overhead or the
+ * cache journal so space-sensitive applications should set a conservative
+ * limit. Which entries are removed first is decided by an
+ * {@link EvictionPolicy}: least recently used by default, or one of the scan
+ * resistant {@link SlruEvictionPolicy} and {@link TinyLfuEvictionPolicy}.
+ * 
+ * <p>
+ * Part of the budget can be set aside for named partitions with
+ * {@link Options#addPartition}. An entry is put in a partition when it is
+ * edited and is only ever evicted to make room in that partition, so a burst
+ * of large entries in one partition can't push out the entries of another.
+ * 
+ * <p>
+ * Each value is normally stored in a file of its own. When opened with
+ * {@link Options#setPackedValueThreshold}, entries whose values are all small
+ * are instead appended to shared segment files, which are compacted in the
+ * background as entries are replaced or evicted. Clients see no difference
+ * between the two.
+ * 
+ * <p>
+ * With {@link Options#setContentAddressed} the values of entries that aren't
+ * packed are stored once per distinct content instead, so entries whose values
+ * are identical share one file. The shared file only counts once towards the
+ * size of the cache.
+ * 
+ * <p>
+ * Opening a cache replays its journal, which takes longer the more entries it
+ * has. With {@link Options#setLazyOpen} the journal is replayed in the
+ * background instead; until it is done, reads miss and edits can't be started
+ * once a bounded wait has passed.
+ * 
+ * <p>
+ * Journal records are buffered. By default every record that changes an entry
+ * is flushed before the operation returns; {@link Options#setDurability}
+ * trades that for fewer writes by flushing records in groups, in which case a
+ * crash may lose the most recent edits but never corrupts the cache.
+ * 
+ * <p>
+ * Hits, misses, evictions, bytes moved and the latency of reads, edits and
+ * commits are counted as the cache is used; {@link #stats} returns them.
  * 
  * <p>
  * Clients call {@link #edit} to create or update the values of an entry. An
@@ -104,16 +157,24 @@ import com.skripiio.imagespark.util.Utils;
 public final class DiskLruCache implements Closeable {
 	static final String JOURNAL_FILE = "journal";
 	static final String JOURNAL_FILE_TMP = "journal.tmp";
+
+	/** Holds the values of imported entries until they are put in place. */
+	static final String IMPORT_DIRECTORY = "import.tmp";
+
+	/** How many imported entries are put in place together. */
+	private static final int IMPORT_BATCH_SIZE = 64;
+	static final long ANY_SEQUENCE_NUMBER = -1;
+
+	/* The text journal format, only read to migrate older caches. */
 	static final String MAGIC = "libcore.io.DiskLruCache";
 	static final String VERSION_1 = "1";
-	static final long ANY_SEQUENCE_NUMBER = -1;
 	private static final String CLEAN = "CLEAN";
 	private static final String DIRTY = "DIRTY";
 	private static final String REMOVE = "REMOVE";
 	private static final String READ = "READ";
 
-	private CompressFormat mCompressFormat = CompressFormat.JPEG;
-	private int mCompressQuality = 70;
+	private volatile CompressFormat mCompressFormat = CompressFormat.JPEG;
+	private volatile int mCompressQuality = 70;
 
 	/* XXX From java.util.Arrays */
 	@SuppressWarnings("unchecked")
@@ -203,8 +264,15 @@ public final class DiskLruCache implements Closeable {
 	}
 
 	/*
-	 * This cache uses a journal file named "journal". A typical journal file
-	 * looks like this: libcore.io.DiskLruCache 1 100 2
+	 * This cache keeps one journal per shard, named "journal" when there is a
+	 * single shard and "journal.N" otherwise. Journals are written in the
+	 * binary format described in BinaryJournal: a checksummed header followed
+	 * by one fixed-size, checksummed record per operation. The records carry
+	 * the same states as the lines of the text format below.
+	 * 
+	 * Earlier versions wrote a text journal. It is still read when a cache is
+	 * opened, and is then rewritten in the binary format. A typical text
+	 * journal file looks like this: libcore.io.DiskLruCache 1 100 2
 	 * 
 	 * CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 832 21054 DIRTY
 	 * 335c4c6028171cfddfbaae1a9c313c52 CLEAN 335c4c6028171cfddfbaae1a9c313c52
@@ -229,29 +297,114 @@ public final class DiskLruCache implements Closeable {
 	 * that have been deleted.
 	 * 
 	 * The journal file is appended to as cache operations occur. The journal
-	 * may occasionally be compacted by dropping redundant lines. A temporary
+	 * may occasionally be compacted by dropping redundant records. A temporary
 	 * file named "journal.tmp" will be used during compaction; that file should
-	 * be deleted if it exists when the cache is opened.
+	 * be deleted if it exists when the cache is opened. Redundant records left
+	 * over from earlier sessions are counted when the cache is opened, so a
+	 * journal never grows far beyond its live entries.
 	 */
 
 	private final File directory;
-	private final File journalFile;
-	private final File journalFileTmp;
+	private final DirectoryLayout layout;
 	private final int appVersion;
 	private final long maxSize;
 	private final int valueCount;
-	private long size = 0;
-	private Writer journalWriter;
-	private final LinkedHashMap<String, Entry> lruEntries = new LinkedHashMap<String, Entry>(
-			0, 0.75f, true);
-	private int redundantOpCount;
+	private final Shard[] shards;
+	private final long packedValueThreshold;
+	private final SegmentStore segments;
+	private final boolean contentAddressed;
+	private final boolean compactIndex;
+	private final BlobStore blobs;
+	private final PartialStore partials;
+	private final Durability durability;
+	private final long groupCommitIntervalMillis;
+	private final long loadTimeoutMillis;
+	private final boolean salvageOnCorruption;
+
+	private final File coldTierDirectory;
+	private final long coldTierMaxSize;
+	private final Options coldTierOptions;
+
+	/**
+	 * The cold tier once the cache is loaded, or null if there is none or it
+	 * couldn't be opened.
+	 */
+	private volatile DiskLruCache coldTier;
+
+	/** Counts reads served by the cold tier. Guarded by itself. */
+	private final FrequencySketch coldTierReads = new FrequencySketch();
+
+	/** Counted down once the journals have been replayed. */
+	private final CountDownLatch loaded = new CountDownLatch(1);
+
+	/** The number of bytes used by all shards together. */
+	private final AtomicLong size = new AtomicLong();
+
+	/**
+	 * Stamps each use of an entry. The stamps are journaled, so that entries
+	 * replayed from the journals of different shards reach the eviction
+	 * policy in the order they were last used.
+	 */
+	private final AtomicLong accessClock = new AtomicLong();
+
+	/** Reads already told to a policy but not yet journaled, oldest first. */
+	private final ConcurrentLinkedQueue<String> unjournaledReads = new ConcurrentLinkedQueue<String>();
+
+	/**
+	 * To differentiate between old and current snapshots, each entry is given
+	 * a sequence number when it is loaded and each time an edit is committed.
+	 * A snapshot is stale if its sequence number is not equal to its entry's
+	 * sequence number. The numbers are drawn cache-wide, so no two views of
+	 * the same key ever share one.
+	 */
+	private final AtomicLong nextSequenceNumber = new AtomicLong();
+
+	/** Names the staged values of imported entries. */
+	private final AtomicLong importCounter = new AtomicLong();
 
 	/**
-	 * To differentiate between old and current snapshots, each entry is given a
-	 * sequence number each time an edit is committed. A snapshot is stale if
-	 * its sequence number is not equal to its entry's sequence number.
+	 * The partitions of the budget; the first is the default partition, which
+	 * has whatever the named ones leave.
 	 */
-	private long nextSequenceNumber = 0;
+	private final Partition[] partitions;
+
+	private final StatsCounter stats = new StatsCounter();
+
+	/**
+	 * The keys that have been published, so that most misses are answered
+	 * without looking in the shards. Replaced by a fresh filter once too many
+	 * of its keys are gone.
+	 */
+	private volatile KeyFilter keyFilter = new KeyFilter(0);
+
+	/** The filter being built to replace {@link #keyFilter}, or null. */
+	private volatile KeyFilter pendingKeyFilter;
+
+	/** How many entries were removed since the filter was built. */
+	private final AtomicInteger keyFilterRemovals = new AtomicInteger();
+
+	/** How many eviction candidates are fetched from the policy at once. */
+	private static final int EVICTION_BATCH_SIZE = 32;
+
+	/** How many reads from the cold tier promote an entry back. */
+	private static final int PROMOTION_HITS = 2;
+
+	/** The number of distinct cold tier keys whose reads are counted. */
+	private static final int PROMOTION_SKETCH_CAPACITY = 4096;
+
+	private volatile boolean closed;
+
+	/**
+	 * Set while opening when the journals can't be appended to as they are,
+	 * because they are in the text format or end in a torn record.
+	 */
+	private boolean journalRewriteRequired;
+
+	/**
+	 * Set while opening when records were dropped from a damaged journal, so
+	 * the entries must be checked against the files before they are trusted.
+	 */
+	private boolean journalSalvaged;
 
 	/** This cache uses a single background thread to evict entries. */
 	private final ExecutorService executorService = new ThreadPoolExecutor(0,
@@ -259,28 +412,413 @@ public final class DiskLruCache implements Closeable {
 	private final Callable<Void> cleanupCallable = new Callable<Void>() {
 		@Override
 		public Void call() throws Exception {
-			synchronized (DiskLruCache.this) {
-				if (journalWriter == null) {
-					return null; // closed
+			if (closed) {
+				return null;
+			}
+			for (Partition partition : partitions) {
+				if (partition.size.get() > partition.maxSize) {
+					trimToSize(partition, partition.lowWatermark);
 				}
-				trimToSize();
-				if (journalRebuildRequired()) {
-					rebuildJournal();
-					redundantOpCount = 0;
+			}
+			for (Shard shard : shards) {
+				synchronized (shard) {
+					if (shard.journalWriter == null) {
+						return null; // closed
+					}
+					if (journalRebuildRequired(shard)) {
+						rebuildJournal(shard);
+						shard.redundantOpCount = 0;
+						stats.recordJournalRebuild();
+					}
 				}
 			}
+			if (segments.compactionRequired()) {
+				compactSegments();
+			}
+			if (keyFilterRebuildRequired()) {
+				rebuildKeyFilter();
+			}
+			return null;
+		}
+	};
+	private final Callable<Void> loadCallable = new Callable<Void>() {
+		@Override
+		public Void call() throws Exception {
+			try {
+				load();
+			} catch (IOException e) {
+				System.out.println("DiskLruCache " + directory
+						+ " failed to open: " + e.getMessage());
+				close();
+			}
 			return null;
 		}
 	};
 
+	/**
+	 * Flushes the journals in groups when the durability is
+	 * {@link Durability#BATCHED}; null otherwise.
+	 */
+	private final ScheduledThreadPoolExecutor flushExecutor;
+
+	/**
+	 * How eagerly journal records are written through to the filesystem.
+	 */
+	public enum Durability {
+		/**
+		 * Every record that changes an entry is flushed before the operation
+		 * returns.
+		 */
+		STRICT,
+
+		/**
+		 * Records are flushed in groups, at most the group commit interval
+		 * after the first of them was written or as soon as the journal's
+		 * buffer fills. Edits committed by concurrent callers share a flush.
+		 */
+		BATCHED,
+
+		/**
+		 * Records are only flushed when the journal's buffer fills, on
+		 * {@link DiskLruCache#flush} and on {@link DiskLruCache#close}.
+		 */
+		LAZY
+	}
+
+	/**
+	 * Optional settings for opening a cache. The defaults match
+	 * {@link DiskLruCache#open(File, int, int, long)}.
+	 */
+	public static final class Options {
+		/** The size at which a segment is closed and a new one started. */
+		public static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+		/** The longest a batched journal record waits to be flushed. */
+		public static final long DEFAULT_GROUP_COMMIT_INTERVAL_MILLIS = 100;
+
+		/** The fraction of the budget that eviction frees space down to. */
+		public static final float DEFAULT_LOW_WATERMARK = 0.9f;
+
+		private int shardCount = 1;
+		private long packedValueThreshold = 0;
+		private long segmentSize = DEFAULT_SEGMENT_SIZE;
+		private Durability durability = Durability.STRICT;
+		private long groupCommitIntervalMillis = DEFAULT_GROUP_COMMIT_INTERVAL_MILLIS;
+		private boolean lazyOpen = false;
+		private long loadTimeoutMillis = 0;
+		private EvictionPolicy evictionPolicy;
+		private boolean salvageOnCorruption = false;
+		private float lowWatermark = DEFAULT_LOW_WATERMARK;
+		private boolean contentAddressed = false;
+		private boolean compactIndex = false;
+		private int fanOutLevels = 0;
+		private File coldTierDirectory;
+		private long coldTierMaxSize;
+		private long suspendedEditSize = 0;
+		private final List<String> partitionNames = new ArrayList<String>();
+		private final List<Long> partitionSizes = new ArrayList<Long>();
+		private final List<EvictionPolicy> partitionPolicies = new ArrayList<EvictionPolicy>();
+
+		/**
+		 * Sets the number of independently locked shards. Entries are spread
+		 * over the shards by the hash of their key; each shard has its own
+		 * lock and journal, so operations on keys in different shards do not
+		 * wait for each other. Defaults to 1.
+		 */
+		public Options setShardCount(int shardCount) {
+			this.shardCount = shardCount;
+			return this;
+		}
+
+		/**
+		 * Packs entries whose values are all at most {@code threshold} bytes
+		 * into shared segment files instead of one file per value. Larger
+		 * entries keep their own files. 0, the default, disables packing.
+		 */
+		public Options setPackedValueThreshold(long threshold) {
+			this.packedValueThreshold = threshold;
+			return this;
+		}
+
+		/**
+		 * Sets the size in bytes at which a segment file is closed and a new
+		 * one started.
+		 */
+		public Options setSegmentSize(long segmentSize) {
+			this.segmentSize = segmentSize;
+			return this;
+		}
+
+		/**
+		 * Sets how eagerly journal records are flushed. With anything but
+		 * {@link Durability#STRICT} the records of the last moments before a
+		 * crash may be lost; the files they describe are cleaned up when the
+		 * cache is next opened. Defaults to {@link Durability#STRICT}.
+		 */
+		public Options setDurability(Durability durability) {
+			this.durability = durability;
+			return this;
+		}
+
+		/**
+		 * Sets the longest time in milliseconds that a record waits to be
+		 * flushed with {@link Durability#BATCHED}.
+		 */
+		public Options setGroupCommitInterval(long millis) {
+			this.groupCommitIntervalMillis = millis;
+			return this;
+		}
+
+		/**
+		 * Makes {@link DiskLruCache#open} return before the journal has been
+		 * replayed, which then happens on the cache's background thread. Until
+		 * it finishes, operations wait for it for at most
+		 * {@code timeoutMillis}; after that {@link DiskLruCache#get} returns
+		 * null, {@link DiskLruCache#edit} returns null and
+		 * {@link DiskLruCache#remove} returns false, as if the entry were
+		 * missing or busy. If the cache can't be opened at all it is closed.
+		 * 
+		 * @param timeoutMillis
+		 *            how long operations wait for the journal; 0 to never
+		 *            wait
+		 */
+		public Options setLazyOpen(long timeoutMillis) {
+			this.lazyOpen = true;
+			this.loadTimeoutMillis = timeoutMillis;
+			return this;
+		}
+
+		/**
+		 * Sets the policy that decides which entries of the default partition
+		 * are evicted. The policy must not be used by another cache. Defaults
+		 * to a new {@link LruEvictionPolicy}, or a new
+		 * {@link CompactLruEvictionPolicy} with a compact index.
+		 */
+		public Options setEvictionPolicy(EvictionPolicy evictionPolicy) {
+			this.evictionPolicy = evictionPolicy;
+			return this;
+		}
+
+		/**
+		 * Keeps what can be trusted of a cache whose journal is damaged
+		 * instead of deleting it. The records before the damage are replayed
+		 * and checked against the files they describe, complete sets of value
+		 * files whose records were lost are taken back in as the least
+		 * recently used entries, and the journal is rebuilt from what
+		 * survives. A journal whose header doesn't match still empties the
+		 * cache. Defaults to false.
+		 */
+		public Options setSalvageOnCorruption(boolean salvage) {
+			this.salvageOnCorruption = salvage;
+			return this;
+		}
+
+		/**
+		 * Sets the fraction of the budget that eviction frees space down to.
+		 * Eviction runs on the cache's background thread once the budget is
+		 * exceeded and removes entries in batches until the size is at most
+		 * {@code fraction} of the budget, so writes that follow don't
+		 * immediately trigger it again. 1 evicts only as much as needed.
+		 * Defaults to {@link #DEFAULT_LOW_WATERMARK}.
+		 */
+		public Options setLowWatermark(float fraction) {
+			this.lowWatermark = fraction;
+			return this;
+		}
+
+		/**
+		 * Stores each distinct value once. Values of entries that aren't
+		 * packed go to files named by a digest of their content, which are
+		 * shared by every entry with that content and deleted with the last
+		 * of them, and which count against each partition using them only
+		 * once. Committing an edit costs an extra read of what it wrote.
+		 * Defaults to false.
+		 */
+		public Options setContentAddressed(boolean contentAddressed) {
+			this.contentAddressed = contentAddressed;
+			return this;
+		}
+
+		/**
+		 * Keeps the published entries in primitive arrays rather than objects,
+		 * cutting the heap used per entry several times over for caches with
+		 * very many entries. Keys must then be written the way
+		 * {@link com.skripiio.imagespark.util.Md5FileNameGenerator} writes
+		 * them, as the keys of {@link DiskLruCache#get} and
+		 * {@link DiskLruCache#put} are; {@link DiskLruCache#edit} rejects
+		 * others, and entries with other keys are dropped when the cache is
+		 * opened. Partitions without a policy of their own use a
+		 * {@link CompactLruEvictionPolicy}. Defaults to false.
+		 */
+		public Options setCompactIndex(boolean compactIndex) {
+			this.compactIndex = compactIndex;
+			return this;
+		}
+
+		/**
+		 * Spreads the value files over {@code levels} levels of 256
+		 * subdirectories chosen by a hash of their key, so that each directory
+		 * stays small and file lookups don't slow down as the cache grows. Two
+		 * levels suit caches of hundreds of thousands of files. Opening a cache
+		 * with a different number of levels than it was last opened with
+		 * moves its files, which takes a while for a large cache. Defaults to
+		 * 0, which keeps every file in the cache directory.
+		 */
+		public Options setDirectoryFanOut(int levels) {
+			this.fanOutLevels = levels;
+			return this;
+		}
+
+		/**
+		 * Backs the cache with a larger and slower cold tier of up to
+		 * {@code maxSize} bytes in {@code directory}, such as a directory on
+		 * external storage. Entries evicted from the cache are demoted to the
+		 * cold tier instead of being lost, reads that miss the cache are
+		 * served from it, and an entry read from it repeatedly is promoted
+		 * back, each keeping its partition. The cold tier is opened with the
+		 * same options and partitions, each partition given the same share of
+		 * its budget, but with the default eviction policies and no tier of
+		 * its own. If it can't be opened, or its volume goes away, the cache
+		 * carries on without it. Defaults to no cold tier.
+		 */
+		public Options setColdTier(File directory, long maxSize) {
+			this.coldTierDirectory = directory;
+			this.coldTierMaxSize = maxSize;
+			return this;
+		}
+
+		/**
+		 * Keeps up to {@code maxSize} bytes of the values written by edits
+		 * that were suspended with {@link Editor#suspend}, so that a later
+		 * edit of the same entry can resume them, such as a download that was
+		 * interrupted. The kept values don't count towards the cache's size;
+		 * beyond this budget those suspended longest ago are discarded.
+		 * Defaults to 0, which makes suspending an edit the same as aborting
+		 * it.
+		 */
+		public Options setSuspendedEditSize(long maxSize) {
+			this.suspendedEditSize = maxSize;
+			return this;
+		}
+
+		/**
+		 * Returns the options the cold tier of a cache of {@code maxSize}
+		 * bytes is opened with.
+		 */
+		private Options forColdTier(long maxSize) {
+			Options cold = new Options();
+			cold.shardCount = shardCount;
+			cold.packedValueThreshold = packedValueThreshold;
+			cold.segmentSize = segmentSize;
+			cold.durability = durability;
+			cold.groupCommitIntervalMillis = groupCommitIntervalMillis;
+			cold.salvageOnCorruption = salvageOnCorruption;
+			cold.lowWatermark = lowWatermark;
+			cold.contentAddressed = contentAddressed;
+			cold.compactIndex = compactIndex;
+			cold.fanOutLevels = fanOutLevels;
+			double scale = (double) coldTierMaxSize / maxSize;
+			for (int i = 0; i < partitionNames.size(); i++) {
+				cold.addPartition(partitionNames.get(i),
+						Math.max(1, (long) (partitionSizes.get(i) * scale)));
+			}
+			return cold;
+		}
+
+		/**
+		 * Sets aside {@code maxSize} bytes of the cache's budget for the
+		 * partition {@code name}, whose entries are evicted least recently
+		 * used first. See {@link #addPartition(String, long, EvictionPolicy)}.
+		 */
+		public Options addPartition(String name, long maxSize) {
+			partitionNames.add(name);
+			partitionSizes.add(maxSize);
+			partitionPolicies.add(null); // picked when the cache is opened
+			return this;
+		}
+
+		/**
+		 * Sets aside {@code maxSize} bytes of the cache's budget for the
+		 * partition {@code name}. Entries are put in it by
+		 * {@link DiskLruCache#edit(String, String)} and are evicted, in the
+		 * order {@code evictionPolicy} gives, only when the partition is over
+		 * its own budget. Entries edited without naming a partition go to the
+		 * default partition, which gets the rest of the budget.
+		 * 
+		 * <p>
+		 * The journal refers to partitions by the order they were added in, so
+		 * a cache must be opened with its partitions added in the same order
+		 * each time. Entries of a partition that is no longer added move to the
+		 * default partition.
+		 */
+		public Options addPartition(String name, long maxSize,
+				EvictionPolicy evictionPolicy) {
+			if (evictionPolicy == null) {
+				throw new NullPointerException("evictionPolicy == null");
+			}
+			partitionNames.add(name);
+			partitionSizes.add(maxSize);
+			partitionPolicies.add(evictionPolicy);
+			return this;
+		}
+	}
+
 	private DiskLruCache(File directory, int appVersion, int valueCount,
-			long maxSize) {
+			long maxSize, Options options) {
 		this.directory = directory;
+		this.layout = new DirectoryLayout(directory, options.fanOutLevels);
 		this.appVersion = appVersion;
-		this.journalFile = new File(directory, JOURNAL_FILE);
-		this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
 		this.valueCount = valueCount;
 		this.maxSize = maxSize;
+		this.compactIndex = options.compactIndex;
+		this.partitions = new Partition[options.partitionNames.size() + 1];
+		long defaultSize = maxSize;
+		for (int i = 1; i < partitions.length; i++) {
+			long partitionSize = options.partitionSizes.get(i - 1);
+			EvictionPolicy policy = options.partitionPolicies.get(i - 1);
+			partitions[i] = new Partition(i, options.partitionNames.get(i - 1),
+					partitionSize, options.lowWatermark,
+					policy != null ? policy : newDefaultPolicy());
+			defaultSize -= partitionSize;
+		}
+		partitions[0] = new Partition(0, null, defaultSize,
+				options.lowWatermark,
+				options.evictionPolicy != null ? options.evictionPolicy
+						: newDefaultPolicy());
+		this.shards = new Shard[options.shardCount];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new Shard(i);
+		}
+		this.packedValueThreshold = options.packedValueThreshold;
+		this.segments = new SegmentStore(directory, shards.length,
+				options.segmentSize);
+		this.contentAddressed = options.contentAddressed;
+		AtomicLong[] partitionSizes = new AtomicLong[partitions.length];
+		for (int i = 0; i < partitions.length; i++) {
+			partitionSizes[i] = partitions[i].size;
+		}
+		this.blobs = new BlobStore(layout, size, partitionSizes);
+		this.partials = new PartialStore(layout, valueCount,
+				options.suspendedEditSize);
+		this.durability = options.durability;
+		this.groupCommitIntervalMillis = options.groupCommitIntervalMillis;
+		this.loadTimeoutMillis = options.loadTimeoutMillis;
+		this.salvageOnCorruption = options.salvageOnCorruption;
+		this.coldTierDirectory = options.coldTierDirectory;
+		this.coldTierMaxSize = options.coldTierMaxSize;
+		this.coldTierOptions = options.forColdTier(maxSize);
+		if (durability == Durability.BATCHED) {
+			this.flushExecutor = new ScheduledThreadPoolExecutor(1);
+			flushExecutor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+			flushExecutor.allowCoreThreadTimeOut(true);
+		} else {
+			this.flushExecutor = null;
+		}
+	}
+
+	private EvictionPolicy newDefaultPolicy() {
+		return compactIndex ? new CompactLruEvictionPolicy()
+				: new LruEvictionPolicy();
 	}
 
 	/**
@@ -299,160 +837,1160 @@ public final class DiskLruCache implements Closeable {
 	 */
 	public static DiskLruCache open(File directory, int appVersion,
 			int valueCount, long maxSize) throws IOException {
+		return open(directory, appVersion, valueCount, maxSize, new Options());
+	}
+
+	/**
+	 * Opens the cache in {@code directory}, creating a cache if none exists
+	 * there. Entries are spread over {@code shardCount} shards by the hash of
+	 * their key; each shard has its own lock and journal, so operations on
+	 * keys in different shards do not wait for each other. The
+	 * {@code maxSize} budget applies to all shards together.
+	 * 
+	 * <p>
+	 * A cache written with a different shard count is redistributed over the
+	 * new shards when it is opened.
+	 * 
+	 * @param shardCount
+	 *            the number of independently locked shards. Must be positive.
+	 * @throws IOException
+	 *             if reading or writing the cache directory fails
+	 */
+	public static DiskLruCache open(File directory, int appVersion,
+			int valueCount, long maxSize, int shardCount) throws IOException {
+		return open(directory, appVersion, valueCount, maxSize,
+				new Options().setShardCount(shardCount));
+	}
+
+	/**
+	 * Opens the cache in {@code directory} with {@code options}, creating a
+	 * cache if none exists there.
+	 * 
+	 * @throws IOException
+	 *             if reading or writing the cache directory fails
+	 */
+	public static DiskLruCache open(File directory, int appVersion,
+			int valueCount, long maxSize, Options options) throws IOException {
 		if (maxSize <= 0) {
 			throw new IllegalArgumentException("maxSize <= 0");
 		}
 		if (valueCount <= 0) {
 			throw new IllegalArgumentException("valueCount <= 0");
 		}
-
-		// prefer to pick up where we left off
-		DiskLruCache cache = new DiskLruCache(directory, appVersion,
-				valueCount, maxSize);
-		if (cache.journalFile.exists()) {
-			try {
-				cache.readJournal();
-				cache.processJournal();
-				cache.journalWriter = new BufferedWriter(new FileWriter(
-						cache.journalFile, true));
-				return cache;
-			} catch (IOException journalIsCorrupt) {
-				System.out.println("DiskLruCache " + directory
-						+ " is corrupt: " + journalIsCorrupt.getMessage()
-						+ ", removing");
-				cache.delete();
+		if (options.shardCount <= 0) {
+			throw new IllegalArgumentException("shardCount <= 0");
+		}
+		if (options.packedValueThreshold < 0
+				|| options.packedValueThreshold > SegmentStore.MAX_VALUE_LENGTH) {
+			throw new IllegalArgumentException(
+					"packedValueThreshold must be between 0 and "
+							+ SegmentStore.MAX_VALUE_LENGTH);
+		}
+		if (options.segmentSize < options.packedValueThreshold
+				|| options.segmentSize > SegmentStore.MAX_SEGMENT_SIZE) {
+			throw new IllegalArgumentException(
+					"segmentSize must be between packedValueThreshold and "
+							+ SegmentStore.MAX_SEGMENT_SIZE);
+		}
+		if (options.durability == null) {
+			throw new NullPointerException("durability == null");
+		}
+		if (options.groupCommitIntervalMillis <= 0) {
+			throw new IllegalArgumentException("groupCommitInterval <= 0");
+		}
+		if (options.loadTimeoutMillis < 0) {
+			throw new IllegalArgumentException("lazy open timeout < 0");
+		}
+		if (!(options.lowWatermark > 0 && options.lowWatermark <= 1)) {
+			throw new IllegalArgumentException(
+					"lowWatermark must be greater than 0 and at most 1");
+		}
+		if (options.fanOutLevels < 0
+				|| options.fanOutLevels > DirectoryLayout.MAX_LEVELS) {
+			throw new IllegalArgumentException("directory fan-out must be 0 to "
+					+ DirectoryLayout.MAX_LEVELS + " levels");
+		}
+		if (options.suspendedEditSize < 0) {
+			throw new IllegalArgumentException("suspendedEditSize < 0");
+		}
+		if (options.coldTierDirectory != null) {
+			if (options.coldTierMaxSize <= 0) {
+				throw new IllegalArgumentException("cold tier maxSize <= 0");
+			}
+			if (options.coldTierDirectory.equals(directory)) {
+				throw new IllegalArgumentException(
+						"the cold tier needs a directory of its own");
+			}
+		}
+		if (options.partitionNames.size() > BinaryJournal.MAX_PARTITION) {
+			throw new IllegalArgumentException("more than "
+					+ BinaryJournal.MAX_PARTITION + " partitions");
+		}
+		long partitionedSize = 0;
+		for (int i = 0; i < options.partitionNames.size(); i++) {
+			String name = options.partitionNames.get(i);
+			if (name == null) {
+				throw new NullPointerException("partition name == null");
+			}
+			if (options.partitionNames.indexOf(name) != i) {
+				throw new IllegalArgumentException("duplicate partition " + name);
+			}
+			if (options.partitionSizes.get(i) <= 0) {
+				throw new IllegalArgumentException("partition " + name
+						+ " maxSize <= 0");
 			}
+			partitionedSize += options.partitionSizes.get(i);
+		}
+		if (partitionedSize >= maxSize) {
+			throw new IllegalArgumentException(
+					"partitions leave no room in the default partition");
 		}
 
-		// create a new empty cache
-		directory.mkdirs();
-		cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-		cache.rebuildJournal();
+		DiskLruCache cache = new DiskLruCache(directory, appVersion,
+				valueCount, maxSize, options);
+		if (options.lazyOpen) {
+			cache.executorService.submit(cache.loadCallable);
+		} else {
+			cache.load();
+		}
 		return cache;
 	}
 
-	private void readJournal() throws IOException {
-		InputStream in = new BufferedInputStream(new FileInputStream(
-				journalFile));
+	/**
+	 * Replays the journals, or creates an empty cache if there are none or
+	 * they are corrupt. Until this returns, only the thread running it may
+	 * touch the shards.
+	 */
+	private void load() throws IOException {
 		try {
-			String magic = /* Streams. */readAsciiLine(in);
-			String version = /* Streams. */readAsciiLine(in);
-			String appVersionString = /* Streams. */readAsciiLine(in);
-			String valueCountString = /* Streams. */readAsciiLine(in);
-			String blank = /* Streams. */readAsciiLine(in);
-			if (!MAGIC.equals(magic) || !VERSION_1.equals(version)
-					|| !Integer.toString(appVersion).equals(appVersionString)
-					|| !Integer.toString(valueCount).equals(valueCountString)
-					|| !"".equals(blank)) {
-				throw new IOException("unexpected journal header: [" + magic
-						+ ", " + version + ", " + valueCountString + ", "
-						+ blank + "]");
-			}
-
-			while (true) {
+			layout.migrate();
+			File staging = new File(directory, IMPORT_DIRECTORY);
+			if (staging.exists()) {
+				/* IoUtils. */deleteContents(staging); // an interrupted import
+				deleteIfExists(staging);
+			}
+
+			// prefer to pick up where we left off
+			List<File> journals = listJournalFiles();
+			if (!journals.isEmpty()) {
 				try {
-					readJournalLine(/* Streams. */readAsciiLine(in));
-				} catch (EOFException endOfJournal) {
-					break;
+					for (File journal : journals) {
+						readJournal(journal);
+					}
+					segments.load();
+					blobs.load();
+					if (journalSalvaged) {
+						adoptUnjournaledFiles();
+					}
+					boolean keysDropped = compactIndex
+							&& dropKeysOutsideCompactIndex();
+					if (durability != Durability.STRICT || journalSalvaged
+							|| keysDropped) {
+						sweepUnjournaledFiles();
+					}
+					processJournal();
+					segments.deleteUnused();
+					blobs.deleteUnused();
+					partials.load();
+					if (!journalRewriteRequired
+							&& isCurrentJournalLayout(journals)) {
+						for (Shard shard : shards) {
+							openJournalWriter(shard, true);
+							if (journalRebuildRequired(shard)) {
+								executorService.submit(cleanupCallable);
+							}
+						}
+					} else {
+						// the journals were written with another shard count
+						// or format
+						for (Shard shard : shards) {
+							rebuildJournal(shard);
+							stats.recordJournalRebuild();
+						}
+						for (File journal : journals) {
+							if (!isShardJournal(journal)) {
+								deleteIfExists(journal);
+							}
+						}
+					}
+					seedEvictionPolicy();
+					rebuildKeyFilter();
+					for (Partition partition : partitions) {
+						if (partition.size.get() > partition.maxSize) {
+							executorService.submit(cleanupCallable);
+							break;
+						}
+					}
+					return;
+				} catch (IOException journalIsCorrupt) {
+					System.out.println("DiskLruCache " + directory
+							+ " is corrupt: " + journalIsCorrupt.getMessage()
+							+ ", removing");
+					reset();
 				}
 			}
+
+			// create a new empty cache
+			directory.mkdirs();
+			layout.writeLevels();
+			for (Shard shard : shards) {
+				rebuildJournal(shard);
+			}
 		} finally {
-			/* IoUtils. */closeQuietly(in);
+			openColdTier();
+			loaded.countDown();
 		}
 	}
 
-	private void readJournalLine(String line) throws IOException {
-		String[] parts = line.split(" ");
-		if (parts.length < 2) {
-			throw new IOException("unexpected journal line: " + line);
-		}
-
-		String key = parts[1];
-		if (parts[0].equals(REMOVE) && parts.length == 2) {
-			lruEntries.remove(key);
+	private void openColdTier() {
+		if (coldTierDirectory == null) {
 			return;
 		}
-
-		Entry entry = lruEntries.get(key);
-		if (entry == null) {
-			entry = new Entry(key);
-			lruEntries.put(key, entry);
-		}
-
-		if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
-			entry.readable = true;
-			entry.currentEditor = null;
-			entry.setLengths(/* Arrays. */copyOfRange(parts, 2, parts.length));
-		} else if (parts[0].equals(DIRTY) && parts.length == 2) {
-			entry.currentEditor = new Editor(entry);
-		} else if (parts[0].equals(READ) && parts.length == 2) {
-			// this work was already done by calling lruEntries.get()
-		} else {
-			throw new IOException("unexpected journal line: " + line);
+		try {
+			coldTier = open(coldTierDirectory, appVersion, valueCount,
+					coldTierMaxSize, coldTierOptions);
+			coldTierReads.ensureCapacity(PROMOTION_SKETCH_CAPACITY);
+		} catch (IOException e) {
+			System.out.println("DiskLruCache " + coldTierDirectory
+					+ " can't be opened: " + e.getMessage()
+					+ ", carrying on without a cold tier");
 		}
 	}
 
 	/**
-	 * Computes the initial size and collects garbage as a part of opening the
-	 * cache. Dirty entries are assumed to be inconsistent and will be deleted.
+	 * Reads the entry for {@code key} from the cold tier, if there is one,
+	 * and promotes it once it has been read there often enough. The cold
+	 * tier failing counts as a miss, since its volume may have gone away.
 	 */
-	private void processJournal() throws IOException {
-		deleteIfExists(journalFileTmp);
-		for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext();) {
-			Entry entry = i.next();
-			if (entry.currentEditor == null) {
-				for (int t = 0; t < valueCount; t++) {
-					size += entry.lengths[t];
-				}
-			} else {
-				entry.currentEditor = null;
-				for (int t = 0; t < valueCount; t++) {
-					deleteIfExists(entry.getCleanFile(t));
-					deleteIfExists(entry.getDirtyFile(t));
-				}
-				i.remove();
+	private Snapshot readColdTier(String key) {
+		DiskLruCache cold = coldTier;
+		if (cold == null) {
+			return null;
+		}
+		Snapshot snapshot;
+		try {
+			snapshot = cold.openSnapshot(cold.shardFor(key), key, true);
+		} catch (IOException e) {
+			return null;
+		}
+		if (snapshot != null) {
+			boolean promote;
+			synchronized (coldTierReads) {
+				coldTierReads.increment(key);
+				promote = coldTierReads.frequency(key) >= PROMOTION_HITS;
+			}
+			if (promote) {
+				executorService.submit(promotion(key));
 			}
 		}
+		return snapshot;
 	}
 
-	/**
-	 * Creates a new journal that omits redundant information. This replaces the
-	 * current journal if it exists.
-	 */
-	private synchronized void rebuildJournal() throws IOException {
-		if (journalWriter != null) {
-			journalWriter.close();
-		}
-
-		Writer writer = new BufferedWriter(new FileWriter(journalFileTmp));
-		writer.write(MAGIC);
-		writer.write("\n");
-		writer.write(VERSION_1);
-		writer.write("\n");
-		writer.write(Integer.toString(appVersion));
-		writer.write("\n");
-		writer.write(Integer.toString(valueCount));
-		writer.write("\n");
-		writer.write("\n");
-
-		for (Entry entry : lruEntries.values()) {
-			if (entry.currentEditor != null) {
-				writer.write(DIRTY + ' ' + entry.key + '\n');
-			} else {
-				writer.write(CLEAN + ' ' + entry.key + entry.getLengths()
-						+ '\n');
+	private Callable<Void> promotion(final String key) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				promote(key);
+				return null;
 			}
-		}
-
-		writer.close();
-		journalFileTmp.renameTo(journalFile);
-		journalWriter = new BufferedWriter(new FileWriter(journalFile, true));
+		};
 	}
 
-	private static void deleteIfExists(File file) throws IOException {
-		/*
-		 * try { Libcore.os.remove(file.getPath()); } catch (ErrnoException
-		 * errnoException) { if (errnoException.errno != OsConstants.ENOENT) {
+	/**
+	 * Moves the entry for {@code key} from the cold tier into this cache, in
+	 * the partition it had there, unless this cache has gained one of its own
+	 * meanwhile.
+	 */
+	private void promote(String key) throws IOException {
+		DiskLruCache cold = coldTier;
+		if (cold == null || closed) {
+			return;
+		}
+		Shard shard = cold.shardFor(key);
+		Published view = cold.lookup(shard, key);
+		Snapshot snapshot = view != null ? cold.openSnapshot(shard, key, false)
+				: null;
+		if (snapshot == null) {
+			return; // promoted already
+		}
+		try {
+			Editor editor = edit(key, view.partition.name);
+			if (editor == null) {
+				return; // being written here
+			}
+			if (editor.entry.readable) {
+				editor.abort(); // written here since it was read
+			} else if (copyValues(snapshot, editor)) {
+				cold.remove(key);
+			}
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	/**
+	 * Moves the values of entries evicted from {@code partition} to the same
+	 * partition of the cold tier. A cold tier that fails only loses them, as
+	 * eviction would have.
+	 */
+	private void demote(List<Snapshot> evicted, Partition partition) {
+		DiskLruCache cold = coldTier;
+		for (Snapshot snapshot : evicted) {
+			try {
+				Editor editor = cold.edit(snapshot.key, partition.name);
+				if (editor != null) {
+					copyValues(snapshot, editor);
+				}
+			} catch (IOException e) {
+				// the volume may have gone away
+			} catch (IllegalStateException closed) {
+			} finally {
+				snapshot.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes the values of {@code snapshot} with {@code editor} and commits.
+	 * 
+	 * @return true if the values were committed
+	 */
+	private static boolean copyValues(Snapshot snapshot, Editor editor)
+			throws IOException {
+		try {
+			for (int i = 0; i < snapshot.files.length; i++) {
+				OutputStream out = editor.newOutputStream(i);
+				try {
+					copy(snapshot.getInputStream(i), out);
+				} finally {
+					out.close();
+				}
+			}
+			editor.commit();
+			return !editor.hasErrors;
+		} finally {
+			editor.abortUnlessCommitted();
+		}
+	}
+
+	/**
+	 * Removes the entry for {@code key} from the cold tier, if there is one.
+	 * 
+	 * @return true if an entry was removed
+	 */
+	private boolean removeFromColdTier(String key) {
+		DiskLruCache cold = coldTier;
+		if (cold == null) {
+			return false;
+		}
+		try {
+			return cold.remove(key);
+		} catch (IOException e) {
+			return false;
+		} catch (IllegalStateException closed) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the cold tier set with {@link Options#setColdTier}, for its
+	 * statistics and size, or null if there is none or it couldn't be opened.
+	 */
+	public DiskLruCache getColdTier() {
+		return coldTier;
+	}
+
+	/**
+	 * Tells the eviction policies about the entries read from the journals,
+	 * the least recently used first, and makes them visible to readers.
+	 */
+	private void seedEvictionPolicy() {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (Shard shard : shards) {
+			entries.addAll(shard.entries.values());
+		}
+		for (Entry entry : byLastAccess(entries)) {
+			if (entry.readable) {
+				entry.sequenceNumber = nextSequenceNumber.getAndIncrement();
+				publish(entry);
+			}
+			Partition partition = entry.partition;
+			partition.size.addAndGet(entry.chargedLength());
+			synchronized (partition.policy) {
+				partition.policy.recordWrite(entry.key, entry.totalLength());
+			}
+		}
+	}
+
+	/** Returns {@code entries} sorted by when they were last used. */
+	private static List<Entry> byLastAccess(Collection<Entry> entries) {
+		List<Entry> sorted = new ArrayList<Entry>(entries);
+		Collections.sort(sorted, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return a.lastAccess < b.lastAccess ? -1
+						: (a.lastAccess == b.lastAccess ? 0 : 1);
+			}
+		});
+		return sorted;
+	}
+
+	/**
+	 * Lets readers see {@code entry}'s current values. Callers must hold the
+	 * shard's lock.
+	 */
+	private void publish(Entry entry) {
+		Shard shard = entry.shard;
+		if (shard.compactIndex != null) {
+			shard.compactIndex.put(entry.key, recordOf(entry));
+			if (entry.currentEditor == null) {
+				shard.entries.remove(entry.key); // the record is enough
+			}
+		} else {
+			shard.published.put(entry.key, new Published(entry));
+		}
+		// added after the view so that a filter being rebuilt can't miss it
+		keyFilter.add(entry.key);
+		KeyFilter pending = pendingKeyFilter;
+		if (pending != null) {
+			pending.add(entry.key);
+		}
+	}
+
+	/**
+	 * Keeps readers away from {@code entry} until it is published again.
+	 * Callers must hold the shard's lock.
+	 */
+	private void unpublish(Entry entry) {
+		Shard shard = entry.shard;
+		if (shard.compactIndex != null) {
+			shard.compactIndex.hide(entry.key);
+		} else {
+			shard.published.remove(entry.key);
+		}
+	}
+
+	/**
+	 * Returns the entry for {@code key}, or null if there is none. With a
+	 * compact index an entry that isn't being edited is rebuilt from its
+	 * record, and changes to it are lost unless it is published again.
+	 * Callers must hold the shard's lock.
+	 */
+	private Entry entryFor(Shard shard, String key) {
+		Entry entry = shard.entries.get(key);
+		if (entry != null || shard.compactIndex == null) {
+			return entry;
+		}
+		long[] record = shard.compactIndex.get(key);
+		if (record == null) {
+			return null;
+		}
+		entry = new Entry(key, shard);
+		int refs = shard.compactIndex.refsOffset();
+		long meta = record[CompactIndex.META];
+		entry.partition = partitionAt(CompactIndex.partitionOf(meta));
+		entry.readable = true;
+		entry.sequenceNumber = record[CompactIndex.SEQUENCE];
+		entry.lastAccess = record[CompactIndex.LAST_ACCESS];
+		System.arraycopy(record, CompactIndex.LENGTHS, entry.lengths, 0,
+				valueCount);
+		switch (CompactIndex.kindOf(meta)) {
+		case CompactIndex.KIND_PACKED:
+			entry.locations = Arrays.copyOfRange(record, refs, refs
+					+ valueCount);
+			break;
+		case CompactIndex.KIND_BLOBS:
+			entry.blobs = Arrays.copyOfRange(record, refs, refs + valueCount);
+			break;
+		}
+		return entry;
+	}
+
+	/** Describes {@code entry} as a record of a compact index. */
+	private long[] recordOf(Entry entry) {
+		CompactIndex index = entry.shard.compactIndex;
+		long[] record = new long[index.recordSize()];
+		int kind = CompactIndex.KIND_FILES;
+		long[] refs = null;
+		if (entry.locations != null) {
+			kind = CompactIndex.KIND_PACKED;
+			refs = entry.locations;
+		} else if (entry.blobs != null) {
+			kind = CompactIndex.KIND_BLOBS;
+			refs = entry.blobs;
+		}
+		record[CompactIndex.META] = CompactIndex.meta(kind,
+				entry.partition.index);
+		record[CompactIndex.SEQUENCE] = entry.sequenceNumber;
+		record[CompactIndex.LAST_ACCESS] = entry.lastAccess;
+		System.arraycopy(entry.lengths, 0, record, CompactIndex.LENGTHS,
+				valueCount);
+		if (refs != null) {
+			System.arraycopy(refs, 0, record, index.refsOffset(), valueCount);
+		}
+		return record;
+	}
+
+	/**
+	 * Returns every entry of {@code shard}, rebuilding those held by a
+	 * compact index. Callers must hold the shard's lock.
+	 */
+	private List<Entry> allEntries(Shard shard) {
+		List<Entry> all = new ArrayList<Entry>(shard.entries.values());
+		if (shard.compactIndex != null) {
+			for (String key : shard.compactIndex.keys()) {
+				if (!shard.entries.containsKey(key)) {
+					all.add(entryFor(shard, key));
+				}
+			}
+		}
+		return all;
+	}
+
+	/** Returns the number of entries of {@code shard}. */
+	private int entryCount(Shard shard) {
+		return shard.compactIndex != null ? shard.compactIndex.size()
+				+ shard.entries.size() : shard.entries.size();
+	}
+
+	/** Returns the partition numbered {@code index} in the journal. */
+	private Partition partitionAt(int index) {
+		// a partition that is no longer configured falls back to the default
+		// one
+		return partitions[index < partitions.length ? index : 0];
+	}
+
+	/**
+	 * Returns what a reader needs to open {@code key}, or null if it isn't
+	 * readable. Doesn't need the shard's lock.
+	 */
+	private Published lookup(Shard shard, String key) {
+		if (shard.compactIndex == null) {
+			return shard.published.get(key);
+		}
+		long[] record = shard.compactIndex.get(key);
+		if (record == null) {
+			return null;
+		}
+		int refs = shard.compactIndex.refsOffset();
+		long meta = record[CompactIndex.META];
+		long[] lengths = Arrays.copyOfRange(record, CompactIndex.LENGTHS,
+				CompactIndex.LENGTHS + valueCount);
+		long[] values = Arrays.copyOfRange(record, refs, refs + valueCount);
+		int kind = CompactIndex.kindOf(meta);
+		return new Published(key,
+				partitionAt(CompactIndex.partitionOf(meta)),
+				record[CompactIndex.SEQUENCE], lengths,
+				kind == CompactIndex.KIND_PACKED ? values : null,
+				kind == CompactIndex.KIND_BLOBS ? values : null);
+	}
+
+	/**
+	 * Returns true if the key filter lets too many absent keys through,
+	 * because it holds more keys than it was sized for or many of them have
+	 * been removed.
+	 */
+	private boolean keyFilterRebuildRequired() {
+		KeyFilter filter = keyFilter;
+		return filter.isSaturated()
+				|| keyFilterRemovals.get() > filter.capacity() / 2;
+	}
+
+	/**
+	 * Replaces the key filter with one holding only the published keys, with
+	 * room for as many again. Keys published meanwhile are added to both.
+	 */
+	private void rebuildKeyFilter() {
+		int count = 0;
+		for (Shard shard : shards) {
+			count += shard.compactIndex != null ? shard.compactIndex.size()
+					: shard.published.size();
+		}
+		KeyFilter filter = new KeyFilter(count * 2);
+		pendingKeyFilter = filter;
+		keyFilterRemovals.set(0);
+		for (Shard shard : shards) {
+			Collection<String> keys;
+			if (shard.compactIndex != null) {
+				synchronized (shard) {
+					keys = shard.compactIndex.keys();
+				}
+			} else {
+				keys = shard.published.keySet();
+			}
+			for (String key : keys) {
+				filter.add(key);
+			}
+		}
+		keyFilter = filter;
+		pendingKeyFilter = null;
+	}
+
+	/**
+	 * Forgets everything read from the journals and deletes the contents of
+	 * the cache directory.
+	 */
+	private void reset() throws IOException {
+		for (Shard shard : shards) {
+			/* IoUtils. */closeQuietly(shard.journalWriter);
+			shard.journalWriter = null;
+			shard.entries.clear();
+			shard.published.clear();
+			if (shard.compactIndex != null) {
+				shard.compactIndex.clear();
+			}
+			shard.redundantOpCount = 0;
+			shard.size = 0;
+		}
+		size.set(0);
+		for (Partition partition : partitions) {
+			partition.size.set(0);
+		}
+		segments.clear();
+		blobs.clear();
+		partials.clear();
+		journalRewriteRequired = false;
+		journalSalvaged = false;
+		/* IoUtils. */deleteContents(directory);
+	}
+
+	/**
+	 * Waits up to the lazy open timeout for the journals to be replayed.
+	 * 
+	 * @return true if they have been
+	 */
+	private boolean awaitLoaded() {
+		if (loaded.getCount() == 0) {
+			return true;
+		}
+		try {
+			return loaded.await(loadTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Returns true once the journal has been replayed, which for a cache that
+	 * wasn't opened lazily is as soon as {@link #open} returns.
+	 */
+	public boolean isLoaded() {
+		return loaded.getCount() == 0;
+	}
+
+	/**
+	 * Returns the journals present in the cache directory, whichever shard
+	 * count they were written with.
+	 */
+	private List<File> listJournalFiles() {
+		List<File> journals = new ArrayList<File>();
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return journals;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (name.equals(JOURNAL_FILE)
+					|| name.matches(JOURNAL_FILE + "\\.\\d+")) {
+				journals.add(file);
+			}
+		}
+		return journals;
+	}
+
+	private boolean isShardJournal(File file) {
+		for (Shard shard : shards) {
+			if (shard.journalFile.equals(file)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isCurrentJournalLayout(List<File> journals) {
+		if (journals.size() != shards.length) {
+			return false;
+		}
+		for (File journal : journals) {
+			if (!isShardJournal(journal)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void readJournal(File journalFile) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(
+				journalFile), Utils.IO_BUFFER_SIZE);
+		try {
+			byte[] prefix = new byte[4];
+			in.mark(prefix.length);
+			int count = in.read(prefix);
+			in.reset();
+			if (BinaryJournal.isBinaryJournal(prefix, count)) {
+				readBinaryJournal(in);
+			} else {
+				readTextJournal(in);
+				journalRewriteRequired = true;
+			}
+		} finally {
+			/* IoUtils. */closeQuietly(in);
+		}
+	}
+
+	private void readBinaryJournal(InputStream in) throws IOException {
+		BinaryJournal.Reader reader = new BinaryJournal.Reader(in, valueCount);
+		reader.readHeader(appVersion);
+		if (reader.isOutdated()) {
+			journalRewriteRequired = true;
+		}
+		try {
+			while (reader.next()) {
+				applyJournalRecord(reader.op(), reader.partition(),
+						reader.key(), reader.values(), reader.stamp());
+			}
+		} catch (IOException damaged) {
+			salvage(damaged, reader.recordCount());
+			return;
+		}
+		if (reader.isTruncated()) {
+			// records appended after a torn one would be misaligned
+			journalRewriteRequired = true;
+		}
+	}
+
+	private void readTextJournal(InputStream in) throws IOException {
+		String magic = /* Streams. */readAsciiLine(in);
+		String version = /* Streams. */readAsciiLine(in);
+		String appVersionString = /* Streams. */readAsciiLine(in);
+		String valueCountString = /* Streams. */readAsciiLine(in);
+		String blank = /* Streams. */readAsciiLine(in);
+		if (!MAGIC.equals(magic) || !VERSION_1.equals(version)
+				|| !Integer.toString(appVersion).equals(appVersionString)
+				|| !Integer.toString(valueCount).equals(valueCountString)
+				|| !"".equals(blank)) {
+			throw new IOException("unexpected journal header: [" + magic
+					+ ", " + version + ", " + valueCountString + ", " + blank
+					+ "]");
+		}
+
+		int lineCount = 0;
+		while (true) {
+			try {
+				readJournalLine(/* Streams. */readAsciiLine(in));
+				lineCount++;
+			} catch (EOFException endOfJournal) {
+				break;
+			} catch (IOException damaged) {
+				salvage(damaged, lineCount);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Stops replaying a journal at a damaged record, keeping the records
+	 * before it if salvaging is enabled.
+	 * 
+	 * @throws IOException
+	 *             {@code damage}, if it isn't
+	 */
+	private void salvage(IOException damage, int recordCount)
+			throws IOException {
+		if (!salvageOnCorruption) {
+			throw damage;
+		}
+		System.out.println("DiskLruCache " + directory + " is damaged after "
+				+ recordCount + " journal records: " + damage.getMessage()
+				+ ", salvaging");
+		journalSalvaged = true;
+		journalRewriteRequired = true;
+	}
+
+	private void readJournalLine(String line) throws IOException {
+		String[] parts = line.split(" ");
+		if (parts.length < 2) {
+			throw new IOException("unexpected journal line: " + line);
+		}
+
+		String key = parts[1];
+		if (parts[0].equals(REMOVE) && parts.length == 2) {
+			applyJournalRecord(BinaryJournal.REMOVE, 0, key, null,
+					BinaryJournal.NO_STAMP);
+		} else if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
+			applyJournalRecord(BinaryJournal.CLEAN, 0, key,
+					parseLengths(/* Arrays. */copyOfRange(parts, 2,
+							parts.length)), BinaryJournal.NO_STAMP);
+		} else if (parts[0].equals(DIRTY) && parts.length == 2) {
+			applyJournalRecord(BinaryJournal.DIRTY, 0, key, null,
+					BinaryJournal.NO_STAMP);
+		} else if (parts[0].equals(READ) && parts.length == 2) {
+			applyJournalRecord(BinaryJournal.READ, 0, key, null,
+					BinaryJournal.NO_STAMP);
+		} else {
+			throw new IOException("unexpected journal line: " + line);
+		}
+	}
+
+	/**
+	 * Parses value lengths written as decimal numbers like "10123".
+	 */
+	private long[] parseLengths(String[] strings) throws IOException {
+		long[] lengths = new long[valueCount];
+		try {
+			for (int i = 0; i < strings.length; i++) {
+				lengths[i] = Long.parseLong(strings[i]);
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("unexpected journal line: "
+					+ Arrays.toString(strings));
+		}
+		return lengths;
+	}
+
+	/**
+	 * Replays one journal record into the shard that owns {@code key}.
+	 * Stamped records restore when the entry was last used; unstamped ones,
+	 * from journals that predate stamps, make it the most recently used.
+	 */
+	private void applyJournalRecord(byte op, int partition, String key,
+			long[] values, long stamp) throws IOException {
+		if (key.length() > BinaryJournal.MAX_KEY_LENGTH) {
+			throw new IOException("unexpected journal key: " + key);
+		}
+		Shard shard = shardFor(key);
+		shard.redundantOpCount++;
+		if (op == BinaryJournal.REMOVE) {
+			shard.entries.remove(key);
+			return;
+		}
+
+		Entry entry = shard.entries.get(key);
+		if (entry == null) {
+			entry = new Entry(key, shard);
+			shard.entries.put(key, entry);
+		}
+		if (stamp == BinaryJournal.NO_STAMP) {
+			entry.lastAccess = accessClock.incrementAndGet();
+		} else if (op != BinaryJournal.DIRTY) {
+			entry.lastAccess = stamp;
+			advanceAccessClock(stamp);
+		}
+		if (op == BinaryJournal.CLEAN || op == BinaryJournal.PACKED
+				|| op == BinaryJournal.CONTENT) {
+			entry.partition = partitionAt(partition);
+		}
+
+		if (op == BinaryJournal.CLEAN) {
+			entry.readable = true;
+			entry.currentEditor = null;
+			entry.locations = null;
+			entry.blobs = null;
+			System.arraycopy(values, 0, entry.lengths, 0, valueCount);
+		} else if (op == BinaryJournal.PACKED) {
+			entry.readable = true;
+			entry.currentEditor = null;
+			entry.locations = values.clone();
+			entry.blobs = null;
+			for (int i = 0; i < valueCount; i++) {
+				entry.lengths[i] = SegmentStore.lengthOf(values[i]);
+			}
+		} else if (op == BinaryJournal.CONTENT) {
+			// the lengths are taken from the blobs once they are loaded
+			entry.readable = true;
+			entry.currentEditor = null;
+			entry.locations = null;
+			entry.blobs = values.clone();
+		} else if (op == BinaryJournal.DIRTY) {
+			entry.currentEditor = new Editor(entry, entry.partition);
+		} else if (op == BinaryJournal.READ) {
+			// the last access was updated above
+		} else {
+			throw new IOException("unexpected journal record: " + op + " "
+					+ key);
+		}
+	}
+
+	/** Moves the access clock forward to at least {@code stamp}. */
+	private void advanceAccessClock(long stamp) {
+		long now;
+		do {
+			now = accessClock.get();
+		} while (now < stamp && !accessClock.compareAndSet(now, stamp));
+	}
+
+	/**
+	 * Takes back complete sets of value files that no replayed record
+	 * describes, which is what becomes of the entries whose records followed
+	 * the damage in a salvaged journal, including entries left mid-edit. Clean
+	 * files only ever appear by renaming a finished value, so their content can
+	 * be trusted; new entries are made the least recently used. Values files of
+	 * entries that the journal does describe get their lengths from the files,
+	 * in case the lost records replaced them.
+	 */
+	private void adoptUnjournaledFiles() {
+		Set<String> keys = new HashSet<String>();
+		for (File file : layout.listFiles()) {
+			String name = file.getName();
+			int dot = name.lastIndexOf('.');
+			if (dot > 0 && !name.startsWith(JOURNAL_FILE)
+					&& !name.startsWith(SegmentStore.SEGMENT_FILE_PREFIX)
+					&& !name.startsWith(BlobStore.BLOB_FILE_PREFIX)
+					&& name.substring(dot + 1).equals("0")) {
+				keys.add(name.substring(0, dot));
+			}
+		}
+		for (String key : keys) {
+			try {
+				validateKey(key);
+			} catch (IllegalArgumentException notAKey) {
+				continue;
+			}
+			Shard shard = shardFor(key);
+			Entry entry = shard.entries.get(key);
+			if (entry != null && entry.currentEditor == null) {
+				continue;
+			}
+			if (entry == null) {
+				entry = new Entry(key, shard);
+			}
+			boolean complete = true;
+			for (int t = 0; t < valueCount && complete; t++) {
+				complete = entry.getCleanFile(t).isFile();
+			}
+			if (complete) {
+				// an edit whose outcome was lost still leaves a committed value
+				entry.currentEditor = null;
+				entry.readable = true;
+				entry.locations = null;
+				entry.blobs = null;
+				shard.entries.put(key, entry);
+			}
+		}
+
+		for (Shard shard : shards) {
+			for (Entry entry : shard.entries.values()) {
+				if (entry.locations == null && entry.blobs == null
+						&& entry.currentEditor == null) {
+					for (int t = 0; t < valueCount; t++) {
+						File file = entry.getCleanFile(t);
+						if (file.exists()) {
+							entry.lengths[t] = file.length();
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forgets the entries whose keys a compact index can't hold, written
+	 * before the cache was opened with one. Their files are swept and the
+	 * journals rewritten without them.
+	 * 
+	 * @return true if any were dropped
+	 */
+	private boolean dropKeysOutsideCompactIndex() {
+		boolean dropped = false;
+		for (Shard shard : shards) {
+			for (Iterator<String> i = shard.entries.keySet().iterator(); i
+					.hasNext();) {
+				if (!CompactIndex.isCompactKey(i.next())) {
+					i.remove();
+					dropped = true;
+				}
+			}
+		}
+		journalRewriteRequired |= dropped;
+		return dropped;
+	}
+
+	/**
+	 * Reconciles the value files with the replayed journals. Unless records are
+	 * flushed before files are changed, a crash can leave files that no record
+	 * mentions, or records whose files were already deleted: the former are
+	 * deleted, the latter dropped.
+	 */
+	private void sweepUnjournaledFiles() throws IOException {
+		Set<String> unclaimed = new HashSet<String>();
+		for (File file : layout.listFiles()) {
+			String name = file.getName();
+			if (name.startsWith(JOURNAL_FILE)
+					|| name.startsWith(SegmentStore.SEGMENT_FILE_PREFIX)
+					|| name.startsWith(BlobStore.BLOB_FILE_PREFIX)
+					|| name.endsWith(PartialStore.PARTIAL_FILE_SUFFIX)) {
+				continue;
+			}
+			if (name.endsWith(".tmp")) {
+				deleteIfExists(file); // no edit survives reopening
+			} else {
+				unclaimed.add(name);
+			}
+		}
+		for (Shard shard : shards) {
+			for (Iterator<Entry> i = shard.entries.values().iterator(); i
+					.hasNext();) {
+				Entry entry = i.next();
+				if (entry.locations != null || entry.blobs != null) {
+					continue;
+				}
+				boolean complete = true;
+				for (int t = 0; t < valueCount; t++) {
+					complete &= unclaimed.remove(entry.getCleanFile(t).getName());
+				}
+				if (!complete && entry.currentEditor == null) {
+					for (int t = 0; t < valueCount; t++) {
+						deleteIfExists(entry.getCleanFile(t));
+					}
+					i.remove();
+				}
+			}
+		}
+		for (String name : unclaimed) {
+			deleteIfExists(layout.fileFor(name));
+		}
+	}
+
+	/**
+	 * Computes the initial size and collects garbage as a part of opening the
+	 * cache. Dirty entries are assumed to be inconsistent and will be deleted,
+	 * as are packed entries whose segment is missing and content addressed
+	 * entries whose blobs are missing.
+	 */
+	private void processJournal() throws IOException {
+		for (Shard shard : shards) {
+			deleteIfExists(shard.journalFileTmp);
+			for (Iterator<Entry> i = shard.entries.values().iterator(); i
+					.hasNext();) {
+				Entry entry = i.next();
+				if (entry.currentEditor == null
+						&& (!segmentsExist(entry) || !blobsExist(entry))) {
+					i.remove();
+				} else if (entry.currentEditor == null) {
+					for (int t = 0; t < valueCount; t++) {
+						if (entry.blobs != null) {
+							// blobs are counted once, by the blob store
+							blobs.addReference(entry.blobs[t],
+									entry.partition.index);
+							entry.lengths[t] = blobs.lengthOf(entry.blobs[t]);
+							continue;
+						}
+						shard.size += entry.lengths[t];
+						if (entry.locations != null) {
+							segments.addLive(entry.locations[t]);
+						}
+					}
+				} else {
+					entry.currentEditor = null;
+					for (int t = 0; t < valueCount; t++) {
+						deleteIfExists(entry.getCleanFile(t));
+						deleteIfExists(entry.getDirtyFile(t));
+					}
+					i.remove();
+				}
+			}
+			size.addAndGet(shard.size);
+			// every record beyond one per live entry is redundant
+			shard.redundantOpCount = Math.max(0, shard.redundantOpCount
+					- shard.entries.size());
+		}
+	}
+
+	/**
+	 * Creates a new journal for {@code shard} that omits redundant
+	 * information. Entries are written least recently used first, so that
+	 * replaying the journal restores their order. This replaces the shard's
+	 * current journal if it exists.
+	 */
+	private void rebuildJournal(Shard shard) throws IOException {
+		synchronized (shard) {
+			if (shard.journalWriter != null) {
+				shard.journalWriter.close();
+			}
+
+			BinaryJournal.Writer writer = new BinaryJournal.Writer(
+					new BufferedOutputStream(new FileOutputStream(
+							shard.journalFileTmp), Utils.IO_BUFFER_SIZE),
+					valueCount);
+			writer.writeHeader(appVersion);
+
+			for (Entry entry : byLastAccess(allEntries(shard))) {
+				if (entry.currentEditor != null) {
+					writer.write(BinaryJournal.DIRTY, entry.key);
+				} else {
+					writePublished(writer, entry);
+				}
+			}
+
+			writer.close();
+			shard.journalFileTmp.renameTo(shard.journalFile);
+			openJournalWriter(shard, true);
+		}
+	}
+
+	/**
+	 * Writes the record that publishes {@code entry}'s current values,
+	 * stamped with when it was last used.
+	 */
+	private void writePublished(BinaryJournal.Writer writer, Entry entry)
+			throws IOException {
+		if (entry.locations != null) {
+			writer.write(BinaryJournal.PACKED, entry.partition.index,
+					entry.key, entry.locations, entry.lastAccess);
+		} else if (entry.blobs != null) {
+			writer.write(BinaryJournal.CONTENT, entry.partition.index,
+					entry.key, entry.blobs, entry.lastAccess);
+		} else {
+			writer.write(BinaryJournal.CLEAN, entry.partition.index,
+					entry.key, entry.lengths, entry.lastAccess);
+		}
+	}
+
+	private boolean segmentsExist(Entry entry) {
+		if (entry.locations != null) {
+			for (long location : entry.locations) {
+				if (!segments.contains(location)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private boolean blobsExist(Entry entry) {
+		if (entry.blobs != null) {
+			for (long id : entry.blobs) {
+				if (!blobs.contains(id)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private void openJournalWriter(Shard shard, boolean append)
+			throws IOException {
+		shard.journalWriter = new BinaryJournal.Writer(
+				new BufferedOutputStream(new FileOutputStream(
+						shard.journalFile, append), Utils.IO_BUFFER_SIZE),
+				valueCount);
+	}
+
+	/** Returns the shard that owns {@code key}. */
+	private Shard shardFor(String key) {
+		if (shards.length == 1) {
+			return shards[0];
+		}
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return shards[(h & 0x7fffffff) % shards.length];
+	}
+
+	private static void deleteIfExists(File file) throws IOException {
+		/*
+		 * try { Libcore.os.remove(file.getPath()); } catch (ErrnoException
+		 * errnoException) { if (errnoException.errno != OsConstants.ENOENT) {
 		 * throw errnoException.rethrowAsIOException(); } }
 		 */
 		if (file.exists() && !file.delete()) {
@@ -461,47 +1999,384 @@ public final class DiskLruCache implements Closeable {
 	}
 
 	/**
-	 * Returns a snapshot of the entry named {@code key}, or null if it doesn't
-	 * exist is not currently readable. If a value is returned, it is moved to
-	 * the head of the LRU queue.
+	 * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+	 * exist is not currently readable. If a value is returned, the read is
+	 * reported to the eviction policy. Reads take no lock, so they don't wait
+	 * for writers or for each other.
+	 */
+	public Snapshot get(String key) throws IOException {
+		long start = System.nanoTime();
+		key = Md5FileNameGenerator.generate(key);
+		try {
+			if (!awaitLoaded()) {
+				stats.recordMisses(1);
+				return null;
+			}
+
+			checkNotClosed();
+			validateKey(key);
+			Snapshot snapshot = openSnapshot(shardFor(key), key, true);
+			return snapshot != null ? snapshot : readColdTier(key);
+		} finally {
+			stats.recordGet(start);
+		}
+	}
+
+	/**
+	 * Returns snapshots of the entries named by {@code keys}, like calling
+	 * {@link #get} for each of them, keyed by the names they were requested
+	 * with. Entries that don't exist or aren't readable are left out. The
+	 * caller must close every snapshot.
+	 */
+	public Map<String, Snapshot> getAll(Collection<String> keys)
+			throws IOException {
+		Map<String, Snapshot> snapshots = new HashMap<String, Snapshot>();
+		if (!awaitLoaded()) {
+			stats.recordMisses(keys.size());
+			return snapshots;
+		}
+
+		checkNotClosed();
+		try {
+			for (String requested : keys) {
+				if (snapshots.containsKey(requested)) {
+					continue; // requested twice
+				}
+				String key = Md5FileNameGenerator.generate(requested);
+				validateKey(key);
+				Snapshot snapshot = openSnapshot(shardFor(key), key, true);
+				if (snapshot == null) {
+					snapshot = readColdTier(key);
+				}
+				if (snapshot != null) {
+					snapshots.put(requested, snapshot);
+				}
+			}
+		} catch (IOException e) {
+			for (Snapshot snapshot : snapshots.values()) {
+				snapshot.close();
+			}
+			throw e;
+		}
+		return snapshots;
+	}
+
+	/**
+	 * Writes the values of an entry that {@link DiskLruCache#getOrLoad} didn't
+	 * find, typically by fetching them from the network.
+	 */
+	public interface Loader {
+		/**
+		 * Writes every value of the entry with {@code editor}, which is
+		 * committed once this returns. Throwing aborts the edit.
+		 */
+		void load(Editor editor) throws IOException;
+	}
+
+	/**
+	 * Returns a snapshot of the entry named {@code key} like {@link #get},
+	 * calling {@code loader} to write it first if it isn't cached. A thread
+	 * that finds another edit of the entry in progress, whether started here
+	 * or with {@link #edit}, waits for it to end and reads what it committed
+	 * instead of loading the entry again, so of the threads that ask for a
+	 * key at once only one loads it. If that edit is aborted, one of the
+	 * waiting threads loads it instead.
+	 *
+	 * @param timeoutMillis
+	 *            how long to wait for other edits of the entry, after which
+	 *            this gives up and returns null
+	 * @return the snapshot, or null if the cache is still opening, the wait
+	 *         timed out or the loaded entry couldn't be read back, when the
+	 *         caller has to do without the cache
+	 * @throws IOException
+	 *             if the loader failed, or the wait was interrupted
+	 */
+	public Snapshot getOrLoad(String key, Loader loader, long timeoutMillis)
+			throws IOException {
+		return getOrLoad(key, null, loader, timeoutMillis);
+	}
+
+	/**
+	 * Like {@link #getOrLoad(String, Loader, long)}, putting a loaded entry in
+	 * {@code partition}.
+	 *
+	 * @param partition
+	 *            a partition added with {@link Options#addPartition}, or null
+	 *            for the default partition
+	 */
+	public Snapshot getOrLoad(String key, String partition, Loader loader,
+			long timeoutMillis) throws IOException {
+		Partition target = partitionNamed(partition);
+		String hashed = Md5FileNameGenerator.generate(key);
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		boolean rereadReadable = true;
+		while (true) {
+			Snapshot snapshot = get(key);
+			if (snapshot != null || !isLoaded()) {
+				return snapshot;
+			}
+			if (!rereadReadable && System.nanoTime() - deadline >= 0) {
+				return null; // the edit waited for is still in progress
+			}
+			Editor editor = editOrAwait(hashed, target, rereadReadable,
+					deadline);
+			if (editor == null) {
+				// another edit ended or timed out, or one was committed after
+				// the read
+				rereadReadable = false;
+				continue;
+			}
+			try {
+				loader.load(editor);
+				editor.commit();
+			} finally {
+				editor.abortUnlessCommitted();
+			}
+			return get(key);
+		}
+	}
+
+	/**
+	 * Starts an edit of the entry named {@code key}, unless another edit is
+	 * in progress, in which case this waits for that edit to end or for the
+	 * {@link System#nanoTime} {@code deadline} to pass.
+	 *
+	 * @param rereadReadable
+	 *            true to return null without editing if the entry has
+	 *            become readable, so that an edit committed since the caller
+	 *            missed it is read rather than repeated; false when the
+	 *            caller already failed to read it, whose files must be gone
+	 * @return the editor, or null to read the entry again
 	 */
-	public synchronized Snapshot get(String key) throws IOException {
-		key = Md5FileNameGenerator.generate(key);
-
-		checkNotClosed();
-		validateKey(key);
-		Entry entry = lruEntries.get(key);
+	private Editor editOrAwait(String key, Partition partition,
+			boolean rereadReadable, long deadline) throws IOException {
+		Shard shard = shardFor(key);
+		synchronized (shard) {
+			checkNotClosed(shard);
+			validateKey(key);
+			Entry entry = shard.entries.get(key);
+			if (entry != null && entry.currentEditor != null) {
+				Editor inProgress = entry.currentEditor;
+				try {
+					// completeEdit notifies the shard
+					while (entry.currentEditor == inProgress) {
+						long remainingMillis = TimeUnit.NANOSECONDS
+								.toMillis(deadline - System.nanoTime());
+						if (remainingMillis <= 0) {
+							break;
+						}
+						shard.wait(remainingMillis);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted waiting for "
+							+ key);
+				}
+				return null;
+			}
+			if (rereadReadable && lookup(shard, key) != null) {
+				return null;
+			}
+			// the shard's lock is reentrant, so no edit can start in between
+			return edit(key, partition, ANY_SEQUENCE_NUMBER);
+		}
+	}
 
-		if (entry == null) {
+	/**
+	 * Opens a snapshot of the readable entry for {@code key} and records the
+	 * access, or returns null. Either is counted as a hit or a miss. Most
+	 * absent keys are turned away by the key filter. This doesn't take the
+	 * shard's lock: if the entry is republished or removed
+	 * while its files are being opened, they are closed and opened again.
+	 * 
+	 * @param countRead
+	 *            false to neither count the read nor record the access
+	 */
+	private Snapshot openSnapshot(Shard shard, String key, boolean countRead)
+			throws IOException {
+		if (!keyFilter.mightContain(key)) {
+			if (countRead) {
+				stats.recordMisses(1);
+			}
 			return null;
 		}
+		while (true) {
+			Published view = lookup(shard, key);
+			if (view == null) {
+				if (countRead) {
+					stats.recordMisses(1);
+				}
+				return null;
+			}
 
-		if (!entry.readable) {
-			return null;
+			Snapshot snapshot = null;
+			try {
+				snapshot = openView(view);
+			} catch (FileNotFoundException e) {
+				// a file must have been deleted manually, unless it was
+				// replaced
+			}
+
+			if (!view.sameValues(lookup(shard, key))) {
+				// a writer replaced the files while we were opening them
+				if (snapshot != null) {
+					snapshot.close();
+				}
+				continue;
+			}
+			if (snapshot == null) {
+				if (countRead) {
+					stats.recordMisses(1);
+				}
+				return null;
+			}
+
+			if (countRead) {
+				stats.recordHit(view.totalLength());
+				recordAccess(view);
+			}
+			return snapshot;
 		}
+	}
 
+	/**
+	 * Opens the files holding the values of {@code view}.
+	 * 
+	 * @throws FileNotFoundException
+	 *             if one of them has been deleted
+	 */
+	private Snapshot openView(Published view) throws IOException {
 		/*
 		 * Open all streams eagerly to guarantee that we see a single published
 		 * snapshot. If we opened streams lazily then the streams could come
 		 * from different edits.
 		 */
-		InputStream[] ins = new InputStream[valueCount];
+		FileInputStream[] ins = new FileInputStream[valueCount];
+		long[] offsets = new long[valueCount];
 		try {
 			for (int i = 0; i < valueCount; i++) {
-				ins[i] = new FileInputStream(entry.getCleanFile(i));
+				if (view.locations != null) {
+					long location = view.locations[i];
+					offsets[i] = SegmentStore.offsetOf(location);
+					ins[i] = new FileInputStream(segments.fileFor(location));
+					ins[i].getChannel().position(offsets[i]);
+				} else if (view.blobs != null) {
+					ins[i] = new FileInputStream(blobs.fileFor(view.blobs[i]));
+				} else {
+					ins[i] = new FileInputStream(cleanFile(view.key, i));
+				}
 			}
-		} catch (FileNotFoundException e) {
-			// a file must have been deleted manually!
-			return null;
+		} catch (IOException e) {
+			for (FileInputStream in : ins) {
+				/* IoUtils. */closeQuietly(in);
+			}
+			throw e;
 		}
+		return new Snapshot(view.key, view.sequenceNumber, ins, offsets,
+				view.lengths, view.locations != null);
+	}
 
-		redundantOpCount++;
-		journalWriter.append(READ + ' ' + key + '\n');
-		if (journalRebuildRequired()) {
-			executorService.submit(cleanupCallable);
+	/**
+	 * Buffers a read of {@code view} for its partition's eviction policy,
+	 * draining the buffer if it has filled up and no other reader is already
+	 * doing so.
+	 */
+	private void recordAccess(Published view) {
+		Partition partition = view.partition;
+		if (!partition.accessBuffer.offer(view.key)
+				|| !partition.accessBuffer.tryStartDrain()) {
+			return;
+		}
+		try {
+			drainAccesses(partition);
+		} finally {
+			partition.accessBuffer.finishDrain();
+		}
+	}
+
+	/**
+	 * Tells {@code partition}'s policy about the buffered reads, and has the
+	 * cleanup thread journal them so that the order survives a restart. Each
+	 * key is journaled once per drain however often it was read, and reads
+	 * dropped by the buffer aren't journaled at all.
+	 */
+	private void drainAccesses(Partition partition) {
+		synchronized (partition.policy) {
+			partition.accessBuffer.drainTo(partition.policy, unjournaledReads);
+		}
+		if (unjournaledReads.isEmpty() || closed) {
+			return;
+		}
+		executorService.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				journalUnjournaledReads();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Tells the policies about the reads still buffered for every partition
+	 * and journals every read not journaled yet, so that a flush or close
+	 * keeps their order.
+	 */
+	private void journalBufferedAccesses() throws IOException {
+		for (Partition partition : partitions) {
+			synchronized (partition.policy) {
+				partition.accessBuffer.drainTo(partition.policy,
+						unjournaledReads);
+			}
+		}
+		journalUnjournaledReads();
+	}
+
+	/** Journals the reads that were drained from the buffers so far. */
+	private void journalUnjournaledReads() throws IOException {
+		Set<String> keys = new LinkedHashSet<String>();
+		String key;
+		while ((key = unjournaledReads.poll()) != null) {
+			keys.add(key);
 		}
+		if (!keys.isEmpty()) {
+			journalAccesses(keys);
+		}
+	}
 
-		return new Snapshot(key, entry.sequenceNumber, ins);
+	/**
+	 * Appends a read record for each of {@code keys} that is still readable,
+	 * making it the most recently used entry in the rebuilt journal and when
+	 * the journal is replayed. The records aren't committed; they are written
+	 * through with the next record that is.
+	 */
+	private void journalAccesses(Collection<String> keys) throws IOException {
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				if (shard.journalWriter == null) {
+					return; // closed
+				}
+				for (String key : keys) {
+					if (shardFor(key) != shard) {
+						continue;
+					}
+					Entry entry = entryFor(shard, key);
+					if (entry != null && entry.readable) {
+						entry.lastAccess = accessClock.incrementAndGet();
+						if (shard.compactIndex != null) {
+							shard.compactIndex.setLastAccess(key,
+									entry.lastAccess);
+						}
+						shard.redundantOpCount++;
+						shard.journalWriter.write(BinaryJournal.READ, key,
+								entry.lastAccess);
+					}
+				}
+				if (journalRebuildRequired(shard)) {
+					executorService.submit(cleanupCallable);
+				}
+			}
+		}
 	}
 
 	private boolean writeBitmapToFile(Bitmap bitmap, DiskLruCache.Editor editor)
@@ -510,7 +2385,10 @@ public final class DiskLruCache implements Closeable {
 		try {
 			out = new BufferedOutputStream(editor.newOutputStream(0),
 					Utils.IO_BUFFER_SIZE);
-			return bitmap.compress(mCompressFormat, mCompressQuality, out);
+			// keep transparency, which most lossy formats would drop
+			CompressFormat format = bitmap.hasAlpha() ? CompressFormat.PNG
+					: mCompressFormat;
+			return bitmap.compress(format, mCompressQuality, out);
 		} finally {
 			if (out != null) {
 				out.close();
@@ -537,6 +2415,20 @@ public final class DiskLruCache implements Closeable {
 
 	private static final int IO_BUFFER_SIZE = 4 * 1024;
 
+	private static void copyFile(File source, File target) throws IOException {
+		InputStream in = new FileInputStream(source);
+		try {
+			OutputStream out = new FileOutputStream(target);
+			try {
+				copy(in, out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
 	private static void copy(InputStream in, OutputStream out)
 			throws IOException {
 		byte[] b = new byte[IO_BUFFER_SIZE];
@@ -557,7 +2449,6 @@ public final class DiskLruCache implements Closeable {
 			}
 
 			if (writeBitmapToFile(data, editor)) {
-				mDiskCache.flush();
 				editor.commit();
 				
 			} else {
@@ -576,125 +2467,682 @@ public final class DiskLruCache implements Closeable {
 
 	}
 
+	/**
+	 * Compresses {@code bitmap} into the first value of the entry for
+	 * {@code key}, which is hashed like the key of {@link #get}. Bitmaps with
+	 * an alpha channel are stored as PNG, others in the format set by
+	 * {@link #setCompressParams}. A new entry needs every value, so this is
+	 * meant for caches with a single value.
+	 * 
+	 * @return true if the bitmap was stored
+	 */
+	public boolean put(String key, Bitmap bitmap) {
+		key = Md5FileNameGenerator.generate(key);
+
+		DiskLruCache.Editor editor = null;
+		try {
+			editor = edit(key);
+			if (editor == null) {
+				return false;
+			}
+
+			if (writeBitmapToFile(bitmap, editor)) {
+				editor.commit();
+				return true;
+			}
+		} catch (IOException ignored) {
+			// reported by returning false
+		} finally {
+			// also after a RuntimeException, such as a bitmap recycled while
+			// it was compressed, or a commit that failed after ending the
+			// edit; the edit mustn't be left open
+			if (editor != null) {
+				editor.abortUnlessCommitted();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Sets the format and quality used by {@link #put(String, Bitmap)} for
+	 * bitmaps without transparency. Defaults to JPEG at 70.
+	 */
+	public void setCompressParams(CompressFormat format, int quality) {
+		mCompressFormat = format;
+		mCompressQuality = quality;
+	}
+
 	/**
 	 * Returns an editor for the entry named {@code key}, or null if another
 	 * edit is in progress.
 	 */
 	public Editor edit(String key) throws IOException {
-		return edit(key, ANY_SEQUENCE_NUMBER);
+		return edit(key, null, ANY_SEQUENCE_NUMBER);
+	}
+
+	/**
+	 * Returns an editor for the entry named {@code key}, which moves the entry
+	 * to {@code partition} when it is committed, or null if another edit is
+	 * in progress.
+	 * 
+	 * @param partition
+	 *            a partition added with {@link Options#addPartition}, or null
+	 *            for the default partition
+	 */
+	public Editor edit(String key, String partition) throws IOException {
+		return edit(key, partitionNamed(partition), ANY_SEQUENCE_NUMBER);
+	}
+
+	private Partition partitionNamed(String name) {
+		if (name == null) {
+			return partitions[0];
+		}
+		for (int i = 1; i < partitions.length; i++) {
+			if (partitions[i].name.equals(name)) {
+				return partitions[i];
+			}
+		}
+		throw new IllegalArgumentException("no partition named " + name);
+	}
+
+	/**
+	 * @param partition
+	 *            the partition to move the entry to, or null to leave it
+	 *            where it is
+	 */
+	private Editor edit(String key, Partition partition,
+			long expectedSequenceNumber) throws IOException {
+		long start = System.nanoTime();
+		if (!awaitLoaded()) {
+			return null; // still opening
+		}
+		Shard shard = shardFor(key);
+		synchronized (shard) {
+			checkNotClosed(shard);
+			validateKey(key);
+			Entry entry = entryFor(shard, key);
+			if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
+					&& (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
+				return null; // snapshot is stale
+			}
+			if (entry == null) {
+				entry = new Entry(key, shard);
+			} else if (entry.currentEditor != null) {
+				return null; // another edit is in progress
+			}
+			shard.entries.put(key, entry);
+
+			Editor editor = new Editor(entry,
+					partition != null ? partition : entry.partition);
+			entry.currentEditor = editor;
+
+			// flush the journal before creating files to prevent file leaks;
+			// if the record is batched instead, leaked files are swept when
+			// the cache is next opened
+			shard.journalWriter.write(BinaryJournal.DIRTY, key);
+			commitJournal(shard);
+			stats.recordEdit(start);
+			return editor;
+		}
+	}
+
+	/**
+	 * Returns the statistics gathered since the cache was opened. This only
+	 * copies a few counters, so it is cheap enough to call often.
+	 */
+	public CacheStats stats() {
+		return stats.snapshot();
+	}
+
+	/**
+	 * Returns the directory where this cache stores its data.
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the maximum number of bytes that this cache should use to store
+	 * its data.
+	 */
+	public long maxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Returns the number of bytes currently being used to store the values in
+	 * this cache. This may be greater than the max size if a background
+	 * deletion is pending.
+	 */
+	public long size() {
+		return size.get();
+	}
+
+	/**
+	 * Writes every readable entry to {@code out} as a bundle, which
+	 * {@link #importBundle} can add to a cache opened with the same app
+	 * version and value count. The entries of the cold tier are written too,
+	 * after those of this cache, unless this cache has the same key. Entries
+	 * are read like snapshots but don't count as reads; an entry edited
+	 * meanwhile is written either as it was or as it is. {@code out} is
+	 * flushed but not closed.
+	 * 
+	 * @return the number of entries written
+	 */
+	public int exportBundle(OutputStream out) throws IOException {
+		awaitLoadedUninterruptibly();
+		checkNotClosed();
+		CacheBundle.Writer writer = new CacheBundle.Writer(out, appVersion,
+				valueCount);
+		Set<String> written = new HashSet<String>();
+		int count = writeEntries(writer, written);
+		DiskLruCache cold = coldTier;
+		if (cold != null) {
+			count += cold.writeEntries(writer, written);
+		}
+		writer.finish();
+		return count;
 	}
 
-	private synchronized Editor edit(String key, long expectedSequenceNumber)
+	/**
+	 * Writes the readable entries whose keys aren't in {@code written} to
+	 * {@code writer}, adding their keys to it.
+	 * 
+	 * @return the number of entries written
+	 */
+	private int writeEntries(CacheBundle.Writer writer, Set<String> written)
 			throws IOException {
+		int count = 0;
+		for (Shard shard : shards) {
+			Map<String, String> partitionByKey = new HashMap<String, String>();
+			synchronized (shard) {
+				checkNotClosed(shard);
+				for (Entry entry : allEntries(shard)) {
+					if (entry.readable && !written.contains(entry.key)) {
+						partitionByKey.put(entry.key, entry.partition.name);
+					}
+				}
+			}
+			for (Map.Entry<String, String> keyAndPartition : partitionByKey
+					.entrySet()) {
+				Snapshot snapshot = openSnapshot(shard,
+						keyAndPartition.getKey(), false);
+				if (snapshot == null) {
+					continue; // removed meanwhile
+				}
+				try {
+					InputStream[] values = new InputStream[valueCount];
+					long[] lengths = new long[valueCount];
+					for (int i = 0; i < valueCount; i++) {
+						values[i] = snapshot.getInputStream(i);
+						lengths[i] = snapshot.getLength(i);
+					}
+					writer.writeEntry(keyAndPartition.getKey(),
+							keyAndPartition.getValue(), lengths, values);
+					written.add(keyAndPartition.getKey());
+					count++;
+				} finally {
+					snapshot.close();
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Adds the entries of a bundle written by {@link #exportBundle}, such as
+	 * one shipped with an application to warm its cache on first launch.
+	 * Entries whose key is already in the cache or being edited are skipped,
+	 * as are those this cache can't hold; entries of a partition this cache
+	 * doesn't have go to the default partition.
+	 * 
+	 * <p>
+	 * Values are streamed to staging files and checked against the bundle's
+	 * checksums, then put in place a batch at a time without going through
+	 * {@link #edit}: each shard's lock is taken and its journal committed once
+	 * per batch rather than once per entry. If the bundle turns out to be
+	 * damaged, the entries before the damage are kept and an
+	 * {@code IOException} is thrown. The cache is trimmed to its budget in the
+	 * background afterwards, as after any write.
+	 * 
+	 * @return the number of entries added
+	 */
+	public int importBundle(InputStream in) throws IOException {
+		awaitLoadedUninterruptibly();
 		checkNotClosed();
-		validateKey(key);
-		Entry entry = lruEntries.get(key);
-		if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
-				&& (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
-			return null; // snapshot is stale
+		CacheBundle.Reader reader = new CacheBundle.Reader(in, appVersion,
+				valueCount);
+		File staging = new File(directory, IMPORT_DIRECTORY);
+		staging.mkdirs();
+		List<StagedEntry> batch = new ArrayList<StagedEntry>();
+		int count = 0;
+		try {
+			while (reader.next()) {
+				StagedEntry staged = stage(reader, staging);
+				if (staged != null) {
+					batch.add(staged);
+				}
+				if (batch.size() == IMPORT_BATCH_SIZE) {
+					count += installStaged(batch);
+				}
+			}
+		} finally {
+			// keep what was read intact before any damage
+			try {
+				count += installStaged(batch);
+			} finally {
+				staging.delete(); // fails if another import is staging too
+			}
 		}
-		if (entry == null) {
-			entry = new Entry(key);
-			lruEntries.put(key, entry);
-		} else if (entry.currentEditor != null) {
-			return null; // another edit is in progress
+		return count;
+	}
+
+	/**
+	 * Copies the values of the entry {@code reader} is at into staging files,
+	 * or skips them if the entry can't or needn't be imported.
+	 * 
+	 * @return the staged entry, or null if it was skipped
+	 */
+	private StagedEntry stage(CacheBundle.Reader reader, File staging)
+			throws IOException {
+		String key = reader.key();
+		OutputStream[] outs = new OutputStream[valueCount];
+		try {
+			validateKey(key);
+		} catch (IllegalArgumentException notAKey) {
+			reader.readValues(outs); // skipped
+			return null;
+		}
+		Shard shard = shardFor(key);
+		if (lookup(shard, key) != null) {
+			reader.readValues(outs); // already cached
+			return null;
+		}
+
+		Partition partition = partitions[0];
+		for (int i = 1; i < partitions.length; i++) {
+			if (partitions[i].name.equals(reader.partition())) {
+				partition = partitions[i];
+			}
+		}
+		long id = importCounter.incrementAndGet();
+		StagedEntry staged = new StagedEntry(key, partition,
+				new File[valueCount]);
+		boolean success = false;
+		try {
+			for (int i = 0; i < valueCount; i++) {
+				staged.files[i] = new File(staging, id + "." + i);
+				outs[i] = new BufferedOutputStream(new FileOutputStream(
+						staged.files[i]));
+			}
+			reader.readValues(outs);
+			for (OutputStream out : outs) {
+				out.close();
+			}
+			success = true;
+			return staged;
+		} finally {
+			if (!success) {
+				for (int i = 0; i < valueCount; i++) {
+					/* IoUtils. */closeQuietly(outs[i]);
+					if (staged.files[i] != null) {
+						deleteIfExists(staged.files[i]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Puts the staged entries in place, one shard at a time, and empties
+	 * {@code batch}. Each shard journals the entries as dirty before their
+	 * files appear, as an edit would, and then publishes them, committing its
+	 * journal once for each. The staging files of entries whose key was
+	 * added meanwhile are deleted.
+	 * 
+	 * @return the number of entries put in place
+	 */
+	private int installStaged(List<StagedEntry> batch) throws IOException {
+		try {
+			return installStagedByShard(batch);
+		} finally {
+			for (StagedEntry staged : batch) {
+				for (File file : staged.files) {
+					deleteIfExists(file);
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	private int installStagedByShard(List<StagedEntry> batch)
+			throws IOException {
+		int count = 0;
+		for (Shard shard : shards) {
+			List<StagedEntry> accepted = new ArrayList<StagedEntry>();
+			synchronized (shard) {
+				checkNotClosed(shard);
+				for (StagedEntry staged : batch) {
+					if (staged.shard() == shard
+							&& entryFor(shard, staged.key) == null) {
+						accepted.add(staged);
+						shard.journalWriter.write(BinaryJournal.DIRTY,
+								staged.key);
+					}
+				}
+				if (accepted.isEmpty()) {
+					continue;
+				}
+				commitJournal(shard);
+
+				for (StagedEntry staged : accepted) {
+					Entry entry = new Entry(staged.key, shard);
+					for (int i = 0; i < valueCount; i++) {
+						File dirty = entry.getDirtyFile(i);
+						layout.makeDirectoryFor(dirty);
+						if (!staged.files[i].renameTo(dirty)) {
+							throw new IOException("failed to rename "
+									+ staged.files[i] + " to " + dirty);
+						}
+					}
+					shard.entries.put(entry.key, entry);
+					publishValues(entry, staged.partition);
+					entry.readable = true;
+					entry.sequenceNumber = nextSequenceNumber.getAndIncrement();
+					entry.lastAccess = accessClock.incrementAndGet();
+					movePartition(entry, entry.partition, 0, 0,
+							staged.partition);
+					publish(entry);
+					writePublished(shard.journalWriter, entry);
+					shard.redundantOpCount++; // the dirty record
+					batch.remove(staged);
+					count++;
+				}
+				commitJournal(shard);
+
+				for (Partition partition : partitions) {
+					if (partition.size.get() > partition.maxSize) {
+						executorService.submit(cleanupCallable);
+						break;
+					}
+				}
+				if (journalRebuildRequired(shard)
+						|| segments.compactionRequired()
+						|| keyFilterRebuildRequired()) {
+					executorService.submit(cleanupCallable);
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Waits for the journals to be replayed however long it takes, for bulk
+	 * operations that can't fall back to the network.
+	 */
+	private void awaitLoadedUninterruptibly() throws IOException {
+		try {
+			loaded.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted opening cache");
+		}
+	}
+
+	private void completeEdit(Editor editor, boolean success)
+			throws IOException {
+		Entry entry = editor.entry;
+		Shard shard = entry.shard;
+		synchronized (shard) {
+			if (entry.currentEditor != editor) {
+				throw new IllegalStateException();
+			}
+
+			// if this edit is creating the entry for the first time, every
+			// index must have a value
+			if (success && !entry.readable) {
+				for (int i = 0; i < valueCount; i++) {
+					if (!entry.getDirtyFile(i).exists()) {
+						editor.abort();
+						throw new IllegalStateException(
+								"edit didn't create file " + i);
+					}
+				}
+			}
+
+			Partition oldPartition = entry.partition;
+			long oldLength = entry.readable ? entry.totalLength() : 0;
+			long oldCharge = entry.readable ? entry.chargedLength() : 0;
+			long[] oldLocations = entry.locations;
+			long[] oldBlobs = entry.blobs;
+			if (success) {
+				if (entry.locations == null && entry.blobs == null) {
+					// the values are about to be replaced in place; packed
+					// and content addressed values are written elsewhere, so
+					// readers may keep using the old ones meanwhile
+					unpublish(entry);
+				}
+				publishValues(entry, editor.partition);
+				partials.discard(entry.key); // superseded
+			} else if (editor.suspended && !editor.hasErrors
+					&& partials.isEnabled()) {
+				File[] dirtyFiles = new File[valueCount];
+				for (int i = 0; i < valueCount; i++) {
+					dirtyFiles[i] = entry.getDirtyFile(i);
+				}
+				partials.keep(entry.key, dirtyFiles);
+			} else {
+				for (int i = 0; i < valueCount; i++) {
+					deleteIfExists(entry.getDirtyFile(i));
+				}
+			}
+
+			shard.redundantOpCount++;
+			entry.currentEditor = null;
+			shard.notifyAll(); // wakes getOrLoad callers waiting on the edit
+			if (entry.readable | success) {
+				entry.readable = true;
+				if (success) {
+					entry.sequenceNumber = nextSequenceNumber.getAndIncrement();
+					entry.lastAccess = accessClock.incrementAndGet();
+					movePartition(entry, oldPartition, oldLength, oldCharge,
+							editor.partition);
+					publish(entry);
+					releaseReplaced(entry, oldPartition, oldLocations,
+							oldBlobs);
+				} else if (shard.compactIndex != null) {
+					shard.entries.remove(entry.key); // its record is unchanged
+				}
+				writePublished(shard.journalWriter, entry);
+			} else {
+				shard.entries.remove(entry.key);
+				shard.journalWriter.write(BinaryJournal.REMOVE, entry.key);
+			}
+			commitJournal(shard);
+
+			Partition partition = entry.partition;
+			if (partition.size.get() > partition.maxSize
+					|| journalRebuildRequired(shard)
+					|| segments.compactionRequired()
+					|| keyFilterRebuildRequired()) {
+				executorService.submit(cleanupCallable);
+			}
 		}
-
-		Editor editor = new Editor(entry);
-		entry.currentEditor = editor;
-
-		// flush the journal before creating files to prevent file leaks
-		journalWriter.write(DIRTY + ' ' + key + '\n');
-		journalWriter.flush();
-		return editor;
-	}
-
-	/**
-	 * Returns the directory where this cache stores its data.
-	 */
-	public File getDirectory() {
-		return directory;
 	}
 
 	/**
-	 * Returns the maximum number of bytes that this cache should use to store
-	 * its data.
+	 * Charges the newly published {@code entry} to {@code partition} and
+	 * tells its policy, after taking the entry's previous charge out of the
+	 * partition it was in. Callers must hold the shard's lock.
 	 */
-	public long maxSize() {
-		return maxSize;
+	private void movePartition(Entry entry, Partition oldPartition,
+			long oldLength, long oldCharge, Partition partition) {
+		oldPartition.size.addAndGet(-oldCharge);
+		if (oldPartition != partition && oldLength > 0) {
+			synchronized (oldPartition.policy) {
+				oldPartition.policy.recordRemoval(entry.key);
+			}
+		}
+		entry.partition = partition;
+		partition.size.addAndGet(entry.chargedLength());
+		synchronized (partition.policy) {
+			partition.policy.recordWrite(entry.key, entry.totalLength());
+		}
 	}
 
 	/**
-	 * Returns the number of bytes currently being used to store the values in
-	 * this cache. This may be greater than the max size if a background
-	 * deletion is pending.
+	 * Moves the values written by an edit into place and updates the sizes.
+	 * If every value of the entry is small enough they are appended to the
+	 * shard's segment, otherwise each gets its own file; values the edit
+	 * didn't write are moved along with them. Blobs are referenced on behalf
+	 * of {@code partition}, the one the entry is published in. Callers must
+	 * hold the shard's lock.
 	 */
-	public synchronized long size() {
-		return size;
-	}
-
-	private synchronized void completeEdit(Editor editor, boolean success)
+	private void publishValues(Entry entry, Partition partition)
 			throws IOException {
-		Entry entry = editor.entry;
-		if (entry.currentEditor != editor) {
-			throw new IllegalStateException();
+		Shard shard = entry.shard;
+		long[] newLengths = new long[valueCount];
+		long written = 0;
+		boolean pack = packedValueThreshold > 0;
+		for (int i = 0; i < valueCount; i++) {
+			File dirty = entry.getDirtyFile(i);
+			if (dirty.exists()) {
+				newLengths[i] = dirty.length();
+				written += newLengths[i];
+			} else {
+				newLengths[i] = entry.lengths[i];
+			}
+			pack &= newLengths[i] <= packedValueThreshold;
 		}
+		stats.recordWritten(written);
 
-		// if this edit is creating the entry for the first time, every index
-		// must have a value
-		if (success && !entry.readable) {
+		long[] oldLocations = entry.locations;
+		long[] oldBlobs = entry.blobs;
+		if (pack) {
+			long[] locations = new long[valueCount];
 			for (int i = 0; i < valueCount; i++) {
-				if (!entry.getDirtyFile(i).exists()) {
-					editor.abort();
-					throw new IllegalStateException("edit didn't create file "
-							+ i);
+				File dirty = entry.getDirtyFile(i);
+				if (dirty.exists()) {
+					locations[i] = segments.append(shard.index, dirty);
+					deleteIfExists(dirty);
+				} else if (oldLocations != null) {
+					locations[i] = oldLocations[i];
+				} else if (oldBlobs != null) {
+					locations[i] = segments.append(shard.index,
+							blobs.fileFor(oldBlobs[i]));
+				} else {
+					locations[i] = segments.append(shard.index,
+							entry.getCleanFile(i));
 				}
 			}
-		}
-
-		for (int i = 0; i < valueCount; i++) {
-			File dirty = entry.getDirtyFile(i);
-			if (success) {
+			if (oldLocations == null && oldBlobs == null) {
+				for (int i = 0; i < valueCount; i++) {
+					deleteIfExists(entry.getCleanFile(i));
+				}
+			}
+			entry.locations = locations;
+			entry.blobs = null;
+		} else if (contentAddressed) {
+			long[] ids = new long[valueCount];
+			for (int i = 0; i < valueCount; i++) {
+				File dirty = entry.getDirtyFile(i);
+				if (dirty.exists()) {
+					ids[i] = blobs.store(dirty, partition.index);
+				} else if (oldBlobs != null) {
+					ids[i] = oldBlobs[i];
+					blobs.retain(ids[i], partition.index);
+				} else if (oldLocations != null) {
+					layout.makeDirectoryFor(dirty);
+					segments.extract(oldLocations[i], dirty);
+					ids[i] = blobs.store(dirty, partition.index);
+				} else {
+					ids[i] = blobs.store(entry.getCleanFile(i),
+							partition.index);
+				}
+				if (oldLocations == null && oldBlobs == null) {
+					deleteIfExists(entry.getCleanFile(i)); // replaced
+				}
+			}
+			entry.locations = null;
+			entry.blobs = ids;
+		} else {
+			for (int i = 0; i < valueCount; i++) {
+				File dirty = entry.getDirtyFile(i);
+				File clean = entry.getCleanFile(i);
 				if (dirty.exists()) {
-					File clean = entry.getCleanFile(i);
 					dirty.renameTo(clean);
-					long oldLength = entry.lengths[i];
-					long newLength = clean.length();
-					entry.lengths[i] = newLength;
-					size = size - oldLength + newLength;
+				} else if (oldLocations != null) {
+					layout.makeDirectoryFor(clean);
+					segments.extract(oldLocations[i], clean);
+				} else if (oldBlobs != null) {
+					layout.makeDirectoryFor(clean);
+					copyFile(blobs.fileFor(oldBlobs[i]), clean);
 				}
-			} else {
-				deleteIfExists(dirty);
 			}
+			entry.locations = null;
+			entry.blobs = null;
 		}
 
-		redundantOpCount++;
-		entry.currentEditor = null;
-		if (entry.readable | success) {
-			entry.readable = true;
-			journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths()
-					+ '\n');
-			if (success) {
-				entry.sequenceNumber = nextSequenceNumber++;
+		for (int i = 0; i < valueCount; i++) {
+			// blobs are counted once, by the blob store
+			long oldLength = oldBlobs == null ? entry.lengths[i] : 0;
+			long newLength = entry.blobs == null ? newLengths[i] : 0;
+			entry.lengths[i] = newLengths[i];
+			shard.size = shard.size - oldLength + newLength;
+			size.addAndGet(newLength - oldLength);
+		}
+	}
+
+	/**
+	 * Releases the segment space and blobs that held {@code entry}'s values
+	 * before its last edit was published. This waits until the new values are
+	 * published so that readers still using the old ones can finish opening
+	 * them. Callers must hold the shard's lock.
+	 */
+	private void releaseReplaced(Entry entry, Partition oldPartition,
+			long[] oldLocations, long[] oldBlobs) throws IOException {
+		for (int i = 0; i < valueCount; i++) {
+			if (oldLocations != null
+					&& (entry.locations == null || entry.locations[i] != oldLocations[i])) {
+				segments.release(oldLocations[i]);
+			}
+			if (oldBlobs != null) {
+				blobs.release(oldBlobs[i], oldPartition.index);
 			}
-		} else {
-			lruEntries.remove(entry.key);
-			journalWriter.write(REMOVE + ' ' + entry.key + '\n');
 		}
+	}
 
-		if (size > maxSize || journalRebuildRequired()) {
-			executorService.submit(cleanupCallable);
+	/**
+	 * Makes the records just written to {@code shard}'s journal as durable as
+	 * the cache's {@link Durability} asks for. In batched mode the first
+	 * unflushed record schedules a flush, and every record written before it
+	 * runs is flushed along with it. Callers must hold the shard's lock.
+	 */
+	private void commitJournal(Shard shard) throws IOException {
+		switch (durability) {
+		case STRICT:
+			shard.journalWriter.flush();
+			break;
+		case BATCHED:
+			if (!shard.flushScheduled) {
+				shard.flushScheduled = true;
+				flushExecutor.schedule(shard.groupCommit,
+						groupCommitIntervalMillis, TimeUnit.MILLISECONDS);
+			}
+			break;
+		case LAZY:
+			break;
 		}
 	}
 
 	/**
-	 * We only rebuild the journal when it will halve the size of the journal
-	 * and eliminate at least 2000 ops.
+	 * We only rebuild a shard's journal when it will halve the size of the
+	 * journal and eliminate at least 2000 ops.
 	 */
-	private boolean journalRebuildRequired() {
+	private boolean journalRebuildRequired(Shard shard) {
 		final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
-		return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
-				&& redundantOpCount >= lruEntries.size();
+		return shard.redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+				&& shard.redundantOpCount >= entryCount(shard);
 	}
 
 	/**
@@ -703,44 +3151,139 @@ public final class DiskLruCache implements Closeable {
 	 * 
 	 * @return true if an entry was removed.
 	 */
-	public synchronized boolean remove(String key) throws IOException {
-
-		checkNotClosed();
-		validateKey(key);
-		Entry entry = lruEntries.get(key);
-		if (entry == null || entry.currentEditor != null) {
+	public boolean remove(String key) throws IOException {
+		if (!awaitLoaded()) {
 			return false;
 		}
+		Shard shard = shardFor(key);
+		boolean removed;
+		synchronized (shard) {
+			checkNotClosed(shard);
+			validateKey(key);
+			Entry entry = entryFor(shard, key);
+			removed = entry != null && entry.currentEditor == null;
+			if (removed) {
+				removeEntry(entry);
+			}
+		}
+		// a copy demoted earlier mustn't come back
+		return removeFromColdTier(key) | removed;
+	}
+
+	/** Deletes {@code entry}'s files. Callers must hold the shard's lock. */
+	private void removeEntry(Entry entry) throws IOException {
+		Shard shard = entry.shard;
+		dropEntry(entry);
+		commitJournal(shard);
+		if (journalRebuildRequired(shard) || segments.compactionRequired()
+				|| keyFilterRebuildRequired()) {
+			executorService.submit(cleanupCallable);
+		}
+	}
 
+	/**
+	 * Deletes {@code entry}'s files and journals its removal, leaving the
+	 * journal to be committed by the caller. Callers must hold the shard's
+	 * lock.
+	 */
+	private void dropEntry(Entry entry) throws IOException {
+		Shard shard = entry.shard;
+		if (shard.compactIndex != null) {
+			shard.compactIndex.remove(entry.key);
+		} else {
+			shard.published.remove(entry.key);
+		}
+		keyFilterRemovals.incrementAndGet();
+		entry.partition.size.addAndGet(-entry.chargedLength());
 		for (int i = 0; i < valueCount; i++) {
-			File file = entry.getCleanFile(i);
-			if (!file.delete()) {
-				throw new IOException("failed to delete " + file);
+			if (entry.locations != null) {
+				segments.release(entry.locations[i]);
+			} else if (entry.blobs != null) {
+				blobs.release(entry.blobs[i], entry.partition.index);
+				entry.lengths[i] = 0;
+				continue; // the blob store keeps the size
+			} else {
+				File file = entry.getCleanFile(i);
+				if (!file.delete()) {
+					throw new IOException("failed to delete " + file);
+				}
 			}
-			size -= entry.lengths[i];
+			shard.size -= entry.lengths[i];
+			size.addAndGet(-entry.lengths[i]);
 			entry.lengths[i] = 0;
 		}
-
-		redundantOpCount++;
-		journalWriter.append(REMOVE + ' ' + key + '\n');
-		lruEntries.remove(key);
-
-		if (journalRebuildRequired()) {
-			executorService.submit(cleanupCallable);
+		entry.blobs = null;
+
+		shard.redundantOpCount++;
+		shard.journalWriter.write(BinaryJournal.REMOVE, entry.key);
+		shard.entries.remove(entry.key);
+		EvictionPolicy policy = entry.partition.policy;
+		synchronized (policy) {
+			policy.recordRemoval(entry.key);
 		}
+	}
 
-		return true;
+	/**
+	 * Copies the live values out of segments that are mostly dead space and
+	 * deletes those segments. Only one shard lock is held at a time.
+	 */
+	private void compactSegments() throws IOException {
+		Set<Integer> sparse = segments.sparseSegments();
+		if (sparse.isEmpty()) {
+			return;
+		}
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				if (shard.journalWriter == null) {
+					return; // closed
+				}
+				for (Entry entry : allEntries(shard)) {
+					if (entry.locations == null) {
+						continue;
+					}
+					boolean moved = false;
+					for (int i = 0; i < valueCount; i++) {
+						long location = entry.locations[i];
+						if (sparse.contains(SegmentStore.segmentOf(location))) {
+							entry.locations[i] = segments.copy(shard.index,
+									location);
+							segments.release(location);
+							moved = true;
+						}
+					}
+					if (moved) {
+						publish(entry);
+						shard.redundantOpCount++;
+						writePublished(shard.journalWriter, entry);
+						if (entry.currentEditor != null) {
+							// the entry is still being edited
+							shard.journalWriter.write(BinaryJournal.DIRTY,
+									entry.key);
+						}
+					}
+				}
+				// the new locations must be on disk before the old ones go
+				shard.journalWriter.flush();
+			}
+		}
+		segments.delete(sparse);
 	}
 
 	/**
 	 * Returns true if this cache has been closed.
 	 */
 	public boolean isClosed() {
-		return journalWriter == null;
+		return closed;
 	}
 
 	private void checkNotClosed() {
-		if (journalWriter == null) {
+		if (closed) {
+			throw new IllegalStateException("cache is closed");
+		}
+	}
+
+	private void checkNotClosed(Shard shard) {
+		if (shard.journalWriter == null) {
 			throw new IllegalStateException("cache is closed");
 		}
 	}
@@ -748,34 +3291,155 @@ public final class DiskLruCache implements Closeable {
 	/**
 	 * Force buffered operations to the filesystem.
 	 */
-	public synchronized void flush() throws IOException {
+	public void flush() throws IOException {
 		checkNotClosed();
-		trimToSize();
-		journalWriter.flush();
+		if (!awaitLoaded()) {
+			return; // nothing has been written yet
+		}
+		journalBufferedAccesses();
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				checkNotClosed(shard);
+				shard.journalWriter.flush();
+			}
+		}
+		DiskLruCache cold = coldTier;
+		if (cold != null) {
+			try {
+				cold.flush();
+			} catch (IOException e) {
+				// the volume may have gone away
+			}
+		}
 	}
 
 	/**
-	 * Closes this cache. Stored values will remain on the filesystem.
+	 * Closes this cache. Stored values will remain on the filesystem. If the
+	 * cache was opened lazily this waits for its journal to be replayed.
 	 */
 	public synchronized void close() throws IOException {
-		if (journalWriter == null) {
+		if (closed) {
 			return; // already closed
 		}
-		for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
-			if (entry.currentEditor != null) {
-				entry.currentEditor.abort();
+		boolean interrupted = false;
+		while (loaded.getCount() != 0) {
+			try {
+				loaded.await();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				for (Entry entry : new ArrayList<Entry>(
+						shard.entries.values())) {
+					if (entry.currentEditor != null
+							&& shard.journalWriter != null) {
+						entry.currentEditor.abort();
+					}
+				}
+			}
+		}
+		journalBufferedAccesses();
+		// an oversized cache is trimmed when it is next opened
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				shard.published.clear();
+				if (shard.compactIndex != null) {
+					shard.compactIndex.clear();
+				}
+				if (shard.journalWriter != null) {
+					shard.journalWriter.close();
+					shard.journalWriter = null;
+				}
 			}
 		}
-		trimToSize();
-		journalWriter.close();
-		journalWriter = null;
+		if (flushExecutor != null) {
+			flushExecutor.shutdownNow();
+		}
+		closed = true;
+		if (coldTier != null) {
+			coldTier.close();
+		}
 	}
 
-	private void trimToSize() throws IOException {
-		while (size > maxSize) {
-			Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator()
-					.next();// lruEntries.eldest();
-			remove(toEvict.getKey());
+	/**
+	 * Evicts entries of {@code partition} until its size is at most
+	 * {@code target}, in the order given by its eviction policy. Entries that
+	 * are being edited are skipped. Consecutive candidates in the same shard
+	 * are evicted under one acquisition of its lock and one journal commit;
+	 * only one lock is held at a time.
+	 */
+	private void trimToSize(Partition partition, long target)
+			throws IOException {
+		EvictionPolicy policy = partition.policy;
+		int batchSize = EVICTION_BATCH_SIZE;
+		while (partition.size.get() > target) {
+			List<String> victims;
+			synchronized (policy) {
+				partition.accessBuffer.drainTo(policy, unjournaledReads);
+				victims = policy.victims(batchSize);
+			}
+			journalUnjournaledReads();
+
+			boolean evicted = false;
+			int next = 0;
+			while (next < victims.size()) {
+				Shard shard = shardFor(victims.get(next));
+				List<Snapshot> demoted = new ArrayList<Snapshot>();
+				synchronized (shard) {
+					if (shard.journalWriter == null) {
+						return; // closed
+					}
+					boolean dropped = false;
+					for (; next < victims.size()
+							&& shardFor(victims.get(next)) == shard; next++) {
+						if (partition.size.get() <= target) {
+							break;
+						}
+						String key = victims.get(next);
+						Entry entry = entryFor(shard, key);
+						if (entry == null || entry.partition != partition) {
+							synchronized (policy) {
+								policy.recordRemoval(key); // stale
+							}
+							evicted = true;
+						} else if (entry.readable
+								&& entry.currentEditor == null) {
+							stats.recordEviction(entry.totalLength());
+							if (coldTier != null) {
+								// the open files outlive the entry's
+								try {
+									demoted.add(openView(new Published(entry)));
+								} catch (IOException e) {
+									// nothing left to demote
+								}
+							}
+							dropEntry(entry);
+							dropped = true;
+							evicted = true;
+						}
+					}
+					if (dropped) {
+						commitJournal(shard);
+					}
+				}
+				if (!demoted.isEmpty()) {
+					demote(demoted, partition);
+				}
+				if (partition.size.get() <= target) {
+					return;
+				}
+			}
+			if (!evicted) {
+				if (victims.size() < batchSize) {
+					return; // everything left is being edited
+				}
+				batchSize *= 2;
+			}
 		}
 	}
 
@@ -787,12 +3451,29 @@ public final class DiskLruCache implements Closeable {
 	public void delete() throws IOException {
 		close();
 		/* IoUtils. */deleteContents(directory);
+		if (coldTier != null) {
+			coldTier.delete();
+		}
 	}
 
 	private void validateKey(String key) {
-		if (key.contains(" ") || key.contains("\n") || key.contains("\r")) {
+		if (key.length() == 0 || key.length() > BinaryJournal.MAX_KEY_LENGTH) {
+			throw new IllegalArgumentException("keys must be 1 to "
+					+ BinaryJournal.MAX_KEY_LENGTH + " characters long: \""
+					+ key + "\"");
+		}
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			if (c == ' ' || c == '\n' || c == '\r' || c > 0x7f) {
+				throw new IllegalArgumentException(
+						"keys must be ASCII and must not contain spaces or newlines: \""
+								+ key + "\"");
+			}
+		}
+		if (compactIndex && !CompactIndex.isCompactKey(key)) {
 			throw new IllegalArgumentException(
-					"keys must not contain spaces or newlines: \"" + key + "\"");
+					"keys of a compact index must be generated by Md5FileNameGenerator: \""
+							+ key + "\"");
 		}
 	}
 
@@ -808,12 +3489,25 @@ public final class DiskLruCache implements Closeable {
 	public final class Snapshot implements Closeable {
 		private final String key;
 		private final long sequenceNumber;
+		private final FileInputStream[] files;
 		private final InputStream[] ins;
+		private final long[] offsets;
+		private final long[] lengths;
 
-		private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
+		private Snapshot(String key, long sequenceNumber,
+				FileInputStream[] files, long[] offsets, long[] lengths,
+				boolean packed) {
 			this.key = key;
 			this.sequenceNumber = sequenceNumber;
-			this.ins = ins;
+			this.files = files;
+			this.offsets = offsets;
+			this.lengths = lengths;
+			this.ins = new InputStream[files.length];
+			for (int i = 0; i < files.length; i++) {
+				// a packed value shares its file with others
+				ins[i] = packed ? SegmentStore.limit(files[i], lengths[i])
+						: files[i];
+			}
 		}
 
 		/**
@@ -822,7 +3516,7 @@ public final class DiskLruCache implements Closeable {
 		 * is in progress.
 		 */
 		public Editor edit() throws IOException {
-			return DiskLruCache.this.edit(key, sequenceNumber);
+			return DiskLruCache.this.edit(key, null, sequenceNumber);
 		}
 
 		/**
@@ -832,6 +3526,35 @@ public final class DiskLruCache implements Closeable {
 			return ins[index];
 		}
 
+		/**
+		 * Returns the channel of the file holding the value for {@code index}.
+		 * The value starts at the channel's initial position and spans
+		 * {@link #getLength} bytes; the file may hold other values after it.
+		 * The channel shares its position with {@link #getInputStream} and is
+		 * closed with this snapshot.
+		 */
+		public FileChannel getChannel(int index) {
+			return files[index].getChannel();
+		}
+
+		/**
+		 * Maps the value for {@code index} into memory read-only, so it can be
+		 * read without copying it onto the heap. The mapping stays valid after
+		 * this snapshot is closed and after the entry is evicted.
+		 */
+		public MappedByteBuffer map(int index) throws IOException {
+			FileChannel channel = getChannel(index);
+			return channel.map(FileChannel.MapMode.READ_ONLY, offsets[index],
+					Math.min(lengths[index], channel.size() - offsets[index]));
+		}
+
+		/**
+		 * Returns the byte length of the value for {@code index}.
+		 */
+		public long getLength(int index) {
+			return lengths[index];
+		}
+
 		/**
 		 * Returns the string value for {@code index}.
 		 */
@@ -841,7 +3564,7 @@ public final class DiskLruCache implements Closeable {
 
 		@Override
 		public void close() {
-			for (InputStream in : ins) {
+			for (FileInputStream in : files) {
 				/* IoUtils. */closeQuietly(in);
 			}
 		}
@@ -852,10 +3575,15 @@ public final class DiskLruCache implements Closeable {
 	 */
 	public final class Editor {
 		private final Entry entry;
+
+		/** The partition the entry is in once this edit is committed. */
+		private final Partition partition;
 		private boolean hasErrors;
+		private boolean suspended;
 
-		private Editor(Entry entry) {
+		private Editor(Entry entry, Partition partition) {
 			this.entry = entry;
+			this.partition = partition;
 		}
 
 		/**
@@ -863,17 +3591,74 @@ public final class DiskLruCache implements Closeable {
 		 * or null if no value has been committed.
 		 */
 		public InputStream newInputStream(int index) throws IOException {
-			synchronized (DiskLruCache.this) {
+			synchronized (entry.shard) {
 				if (entry.currentEditor != this) {
 					throw new IllegalStateException();
 				}
 				if (!entry.readable) {
 					return null;
 				}
+				if (entry.locations != null) {
+					return segments.newInputStream(entry.locations[index]);
+				}
+				if (entry.blobs != null) {
+					return new FileInputStream(blobs.fileFor(entry.blobs[index]));
+				}
 				return new FileInputStream(entry.getCleanFile(index));
 			}
 		}
 
+		/**
+		 * Returns an unbuffered input stream over what this edit has written
+		 * to the value at {@code index} so far, or null if nothing has been
+		 * written to it. Bytes still buffered by the writer are not seen.
+		 */
+		public InputStream newPendingInputStream(int index) throws IOException {
+			synchronized (entry.shard) {
+				if (entry.currentEditor != this) {
+					throw new IllegalStateException();
+				}
+				File dirty = entry.getDirtyFile(index);
+				return dirty.exists() ? new FileInputStream(dirty) : null;
+			}
+		}
+
+		/**
+		 * Returns the number of bytes this edit has written to the value at
+		 * {@code index} so far, or resumed; 0 if it has none.
+		 */
+		public long getPendingLength(int index) {
+			synchronized (entry.shard) {
+				if (entry.currentEditor != this) {
+					throw new IllegalStateException();
+				}
+				return entry.getDirtyFile(index).length();
+			}
+		}
+
+		/**
+		 * Takes over the values written by the last suspended edit of this
+		 * entry, as if this edit had written them: they can be read with
+		 * {@link #newPendingInputStream}, continued with
+		 * {@link #newAppendingOutputStream} and are committed with this edit
+		 * unless rewritten. Call this before writing anything, since it
+		 * replaces what this edit has written.
+		 * 
+		 * @return false if no suspended edit's values were kept
+		 */
+		public boolean resume() throws IOException {
+			synchronized (entry.shard) {
+				if (entry.currentEditor != this) {
+					throw new IllegalStateException();
+				}
+				File[] dirtyFiles = new File[valueCount];
+				for (int i = 0; i < valueCount; i++) {
+					dirtyFiles[i] = entry.getDirtyFile(i);
+				}
+				return partials.resume(entry.key, dirtyFiles);
+			}
+		}
+
 		/**
 		 * Returns the last committed value as a string, or null if no value has
 		 * been committed.
@@ -891,12 +3676,31 @@ public final class DiskLruCache implements Closeable {
 		 * IOExceptions.
 		 */
 		public OutputStream newOutputStream(int index) throws IOException {
-			synchronized (DiskLruCache.this) {
+			synchronized (entry.shard) {
+				if (entry.currentEditor != this) {
+					throw new IllegalStateException();
+				}
+				File dirty = entry.getDirtyFile(index);
+				layout.makeDirectoryFor(dirty);
+				return new FaultHidingOutputStream(new FileOutputStream(dirty));
+			}
+		}
+
+		/**
+		 * Returns a new unbuffered output stream that continues the value at
+		 * {@code index} after what this edit has written or resumed, like
+		 * {@link #newOutputStream} otherwise.
+		 */
+		public OutputStream newAppendingOutputStream(int index)
+				throws IOException {
+			synchronized (entry.shard) {
 				if (entry.currentEditor != this) {
 					throw new IllegalStateException();
 				}
-				return new FaultHidingOutputStream(new FileOutputStream(
-						entry.getDirtyFile(index)));
+				File dirty = entry.getDirtyFile(index);
+				layout.makeDirectoryFor(dirty);
+				return new FaultHidingOutputStream(new FileOutputStream(dirty,
+						true));
 			}
 		}
 
@@ -925,7 +3729,9 @@ public final class DiskLruCache implements Closeable {
 				completeEdit(this, false);
 				remove(entry.key); // the previous entry is stale
 			} else {
+				long start = System.nanoTime();
 				completeEdit(this, true);
+				stats.recordCommit(start);
 			}
 		}
 
@@ -937,6 +3743,33 @@ public final class DiskLruCache implements Closeable {
 			completeEdit(this, false);
 		}
 
+		/**
+		 * Aborts this edit unless it has already been committed or aborted,
+		 * including by the cache being closed. Meant for a finally block.
+		 */
+		public void abortUnlessCommitted() {
+			synchronized (entry.shard) {
+				if (entry.currentEditor != this) {
+					return;
+				}
+				try {
+					completeEdit(this, false);
+				} catch (IOException ignored) {
+				}
+			}
+		}
+
+		/**
+		 * Ends this edit like {@link #abort}, but keeps what it has written so
+		 * that a later edit of the entry can {@link #resume} it. Streams must
+		 * be flushed first. Nothing is kept if writing failed, or if the
+		 * cache was opened without {@link Options#setSuspendedEditSize}.
+		 */
+		public void suspend() throws IOException {
+			suspended = true;
+			completeEdit(this, false);
+		}
+
 		private class FaultHidingOutputStream extends FilterOutputStream {
 			private FaultHidingOutputStream(OutputStream out) {
 				super(out);
@@ -980,12 +3813,125 @@ public final class DiskLruCache implements Closeable {
 		}
 	}
 
+	/**
+	 * A share of the cache's budget with its own eviction policy. The policy
+	 * has its own lock, which may be taken while holding a shard's lock but
+	 * not the other way around.
+	 */
+	private static final class Partition {
+		private final int index;
+
+		/** The name it was added with, or null for the default partition. */
+		private final String name;
+		private final long maxSize;
+
+		/** The size that eviction frees space down to once it is triggered. */
+		private final long lowWatermark;
+		private final EvictionPolicy policy;
+
+		/** The total length of the values of the entries in this partition. */
+		private final AtomicLong size = new AtomicLong();
+
+		/** Reads not yet reported to the policy. */
+		private final AccessBuffer accessBuffer = new AccessBuffer();
+
+		private Partition(int index, String name, long maxSize,
+				float lowWatermark, EvictionPolicy policy) {
+			this.index = index;
+			this.name = name;
+			this.maxSize = maxSize;
+			this.lowWatermark = (long) (maxSize * (double) lowWatermark);
+			this.policy = policy;
+			policy.setMaxSize(maxSize);
+		}
+	}
+
+	/**
+	 * An independently locked part of the cache. A shard owns the entries
+	 * whose keys hash to it, their journal and their share of the size. All of
+	 * its fields are guarded by the shard's monitor.
+	 */
+	private final class Shard {
+		private final int index;
+		private final File journalFile;
+		private final File journalFileTmp;
+		private BinaryJournal.Writer journalWriter;
+		private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+		/**
+		 * The readable entries as readers may see them without this shard's
+		 * lock. A writer removes an entry's view before it changes the files
+		 * the view points at, and puts a new one once they are in place.
+		 */
+		private final ConcurrentHashMap<String, Published> published = new ConcurrentHashMap<String, Published>();
+
+		/**
+		 * With a compact index, the published entries instead of
+		 * {@link #published} and of {@link #entries}, which then only holds
+		 * the entries being edited; otherwise null.
+		 */
+		private final CompactIndex compactIndex;
+		private int redundantOpCount;
+		private long size = 0;
+
+		/** True while a group commit of this shard's journal is pending. */
+		private boolean flushScheduled;
+
+		private final Runnable groupCommit = new Runnable() {
+			@Override
+			public void run() {
+				synchronized (Shard.this) {
+					flushScheduled = false;
+					if (journalWriter == null) {
+						return; // closed
+					}
+					try {
+						journalWriter.flush();
+					} catch (IOException e) {
+						// the buffer is kept; the next flush retries it
+					}
+				}
+			}
+		};
+
+		private Shard(int index) {
+			this.index = index;
+			this.compactIndex = DiskLruCache.this.compactIndex ? new CompactIndex(
+					valueCount) : null;
+			if (shards.length == 1) {
+				this.journalFile = new File(directory, JOURNAL_FILE);
+				this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+			} else {
+				this.journalFile = new File(directory, JOURNAL_FILE + "."
+						+ index);
+				this.journalFileTmp = new File(directory, JOURNAL_FILE + "."
+						+ index + ".tmp");
+			}
+		}
+	}
+
 	private final class Entry {
 		private final String key;
+		private final Shard shard;
 
 		/** Lengths of this entry's files. */
 		private final long[] lengths;
 
+		/**
+		 * The segment locations of this entry's values, or null if each value
+		 * has a file of its own.
+		 */
+		private long[] locations;
+
+		/**
+		 * The blob ids of this entry's values if the cache is content
+		 * addressed and the entry isn't packed, otherwise null.
+		 */
+		private long[] blobs;
+
+		/** The partition this entry's size is charged to. */
+		private Partition partition;
+
 		/** True if this entry has ever been published */
 		private boolean readable;
 
@@ -998,47 +3944,116 @@ public final class DiskLruCache implements Closeable {
 		 */
 		private long sequenceNumber;
 
-		private Entry(String key) {
+		/**
+		 * The value of the access clock when this entry was last published,
+		 * when its last read was journaled, or when its last journal record
+		 * was replayed.
+		 */
+		private long lastAccess;
+
+		private Entry(String key, Shard shard) {
 			this.key = key;
+			this.shard = shard;
 			this.lengths = new long[valueCount];
+			this.partition = partitions[0];
 		}
 
-		public String getLengths() throws IOException {
-			StringBuilder result = new StringBuilder();
-			for (long size : lengths) {
-				result.append(' ').append(size);
+		private long totalLength() {
+			long total = 0;
+			for (long length : lengths) {
+				total += length;
 			}
-			return result.toString();
+			return total;
 		}
 
 		/**
-		 * Set lengths using decimal numbers like "10123".
+		 * Returns the part of this entry's length that is charged to its
+		 * partition. Blobs are charged by the blob store instead, once per
+		 * partition however many entries share them.
 		 */
-		private void setLengths(String[] strings) throws IOException {
-			if (strings.length != valueCount) {
-				throw invalidLengths(strings);
-			}
+		private long chargedLength() {
+			return blobs != null ? 0 : totalLength();
+		}
 
-			try {
-				for (int i = 0; i < strings.length; i++) {
-					lengths[i] = Long.parseLong(strings[i]);
-				}
-			} catch (NumberFormatException e) {
-				throw invalidLengths(strings);
-			}
+		public File getCleanFile(int i) {
+			return cleanFile(key, i);
 		}
 
-		private IOException invalidLengths(String[] strings) throws IOException {
-			throw new IOException("unexpected journal line: "
-					+ Arrays.toString(strings));
+		public File getDirtyFile(int i) {
+			return layout.fileFor(key + "." + i + ".tmp");
 		}
+	}
 
-		public File getCleanFile(int i) {
-			return new File(directory, key + "." + i);
+	private File cleanFile(String key, int index) {
+		return layout.fileFor(key + "." + index);
+	}
+
+	/** An imported entry whose values wait in staging files. */
+	private final class StagedEntry {
+		private final String key;
+		private final Partition partition;
+		private final File[] files;
+
+		private StagedEntry(String key, Partition partition, File[] files) {
+			this.key = key;
+			this.partition = partition;
+			this.files = files;
 		}
 
-		public File getDirtyFile(int i) {
-			return new File(directory, key + "." + i + ".tmp");
+		private Shard shard() {
+			return shardFor(key);
+		}
+	}
+
+	/**
+	 * A readable entry's values as of one edit, copied when it is published.
+	 * Views are never modified, so readers can use them without the shard's
+	 * lock.
+	 */
+	private final class Published {
+		private final String key;
+		private final Partition partition;
+		private final long sequenceNumber;
+		private final long[] lengths;
+		private final long[] locations;
+		private final long[] blobs;
+
+		private Published(Entry entry) {
+			this(entry.key, entry.partition, entry.sequenceNumber,
+					entry.lengths.clone(), entry.locations != null ? entry.locations
+							.clone() : null, entry.blobs != null ? entry.blobs
+							.clone() : null);
+		}
+
+		private Published(String key, Partition partition,
+				long sequenceNumber, long[] lengths, long[] locations,
+				long[] blobs) {
+			this.key = key;
+			this.partition = partition;
+			this.sequenceNumber = sequenceNumber;
+			this.lengths = lengths;
+			this.locations = locations;
+			this.blobs = blobs;
+		}
+
+		/**
+		 * Returns true if {@code other} describes the same values of the same
+		 * edit, so that files opened for this view are also current for it.
+		 */
+		private boolean sameValues(Published other) {
+			return other == this
+					|| (other != null && other.sequenceNumber == sequenceNumber
+							&& Arrays.equals(other.lengths, lengths)
+							&& Arrays.equals(other.locations, locations) && Arrays
+								.equals(other.blobs, blobs));
+		}
+
+		private long totalLength() {
+			long total = 0;
+			for (long length : lengths) {
+				total += length;
+			}
+			return total;
 		}
 	}
 }
\ No newline at end of file
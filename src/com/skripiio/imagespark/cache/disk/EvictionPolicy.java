@@ -0,0 +1,33 @@
+package com.skripiio.imagespark.cache.disk;
+
+import java.util.List;
+
+/**
+ * Decides the order in which a {@link DiskLruCache} evicts its entries once it
+ * is over its budget.
+ * 
+ * <p>
+ * A policy only sees published entries. The cache serializes its calls to the
+ * policy, so implementations need not be thread safe, but an instance must not
+ * be shared between caches.
+ */
+public interface EvictionPolicy {
+
+	/** Called once, before any other method, with the cache's budget in bytes. */
+	public void setMaxSize(long maxSize);
+
+	/** Records that {@code key} was published, or republished with a new size. */
+	public void recordWrite(String key, long size);
+
+	/** Records that {@code key} was read. */
+	public void recordAccess(String key);
+
+	/** Forgets {@code key}, which has been removed or evicted. */
+	public void recordRemoval(String key);
+
+	/**
+	 * @return up to {@code count} keys in the order they should be evicted,
+	 *         the most evictable first
+	 */
+	public List<String> victims(int count);
+}
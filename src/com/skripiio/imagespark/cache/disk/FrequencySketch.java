@@ -0,0 +1,90 @@
+package com.skripiio.imagespark.cache.disk;
+
+/**
+ * An approximate count of how often each key was used recently, in a fixed
+ * amount of memory: a count-min sketch of 4-bit counters, sixteen to a long.
+ * Each key maps to one counter in each of four rows of the table and its
+ * frequency is the smallest of them. Once enough increments have been seen
+ * every counter is halved, so old popularity fades.
+ */
+final class FrequencySketch {
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L,
+			0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final long ONE_MASK = 0x1111111111111111L;
+	private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+	private long[] table = new long[0];
+	private int sampleSize;
+	private int additions;
+
+	/**
+	 * Sizes the table for about {@code expectedKeys} distinct keys. Growing
+	 * the table forgets every count.
+	 */
+	void ensureCapacity(int expectedKeys) {
+		int capacity = Math.min(Math.max(expectedKeys, 16), MAXIMUM_CAPACITY);
+		if (table.length >= capacity) {
+			return;
+		}
+		table = new long[Integer.highestOneBit(capacity - 1) << 1];
+		sampleSize = 10 * capacity;
+		additions = 0;
+	}
+
+	/** Returns the estimated number of recent uses of {@code key}, up to 15. */
+	int frequency(String key) {
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			int shift = (start + i) << 2;
+			int count = (int) ((table[indexOf(hash, i)] >>> shift) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/** Counts a use of {@code key}. */
+	void increment(String key) {
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			added |= incrementAt(indexOf(hash, i), (start + i) << 2);
+		}
+		if (added && ++additions >= sampleSize) {
+			halve();
+		}
+	}
+
+	private boolean incrementAt(int index, int shift) {
+		long mask = 0xfL << shift;
+		if ((table[index] & mask) != mask) {
+			table[index] += 1L << shift;
+			return true;
+		}
+		return false;
+	}
+
+	private void halve() {
+		int odd = 0;
+		for (int i = 0; i < table.length; i++) {
+			odd += Long.bitCount(table[i] & ONE_MASK);
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions = (additions >>> 1) - (odd >>> 2);
+	}
+
+	private int indexOf(int hash, int row) {
+		long h = (hash + SEEDS[row]) * SEEDS[row];
+		h += h >>> 32;
+		return (int) h & (table.length - 1);
+	}
+
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+}
@@ -0,0 +1,103 @@
+package com.skripiio.imagespark.cache.disk;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of the keys in a {@link DiskLruCache}, so that most lookups
+ * of absent keys can be answered without consulting the index. It may answer
+ * that an absent key is present, but once a key has been added it never
+ * answers that it is absent. Keys can't be taken out again, so the cache
+ * replaces the filter with a fresh one once enough of its keys have gone.
+ *
+ * <p>
+ * Adding and testing keys are lock free and may happen concurrently.
+ */
+final class KeyFilter {
+	/** With 10 bits per key and 7 probes about 1% of absent keys pass. */
+	private static final int BITS_PER_KEY = 10;
+	private static final int PROBES = 7;
+	private static final int MIN_CAPACITY = 256;
+
+	private final int capacity;
+	private final int bitMask;
+	private final AtomicLongArray words;
+	private final AtomicInteger addCount = new AtomicInteger();
+
+	/**
+	 * @param expectedKeys
+	 *            the number of keys the filter should hold before it becomes
+	 *            {@link #isSaturated saturated}
+	 */
+	KeyFilter(int expectedKeys) {
+		this.capacity = Math.max(expectedKeys, MIN_CAPACITY);
+		// round the bit count up to a power of two so probes can be masked
+		int bits = Integer.highestOneBit(capacity * BITS_PER_KEY - 1) << 1;
+		this.bitMask = bits - 1;
+		this.words = new AtomicLongArray(bits / 64);
+	}
+
+	/** Returns the number of keys the filter was sized for. */
+	int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Adds {@code key}. Keys that already seem present aren't counted
+	 * towards the capacity again.
+	 */
+	void add(String key) {
+		int h1 = key.hashCode();
+		int h2 = secondHash(key);
+		boolean changed = false;
+		for (int i = 0; i < PROBES; i++) {
+			int bit = (h1 + i * h2) & bitMask;
+			int index = bit >>> 6;
+			long mask = 1L << bit;
+			while (true) {
+				long word = words.get(index);
+				if ((word & mask) != 0) {
+					break;
+				}
+				if (words.compareAndSet(index, word, word | mask)) {
+					changed = true;
+					break;
+				}
+			}
+		}
+		if (changed) {
+			addCount.incrementAndGet();
+		}
+	}
+
+	/** Returns false if {@code key} was certainly never added. */
+	boolean mightContain(String key) {
+		int h1 = key.hashCode();
+		int h2 = secondHash(key);
+		for (int i = 0; i < PROBES; i++) {
+			int bit = (h1 + i * h2) & bitMask;
+			if ((words.get(bit >>> 6) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true once more keys have been added than the filter was sized
+	 * for, so that absent keys pass more often than intended.
+	 */
+	boolean isSaturated() {
+		return addCount.get() > capacity;
+	}
+
+	/** An FNV-1a hash, forced odd so that the probes visit distinct bits. */
+	private static int secondHash(String key) {
+		int hash = 0x811c9dc5;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x01000193;
+		}
+		return hash | 1;
+	}
+}
@@ -0,0 +1,37 @@
+package com.skripiio.imagespark.cache.disk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Evicts the least recently used entry first. This is the default policy.
+ */
+public final class LruEvictionPolicy implements EvictionPolicy {
+	private final WeightedLru entries = new WeightedLru();
+
+	@Override
+	public void setMaxSize(long maxSize) {
+	}
+
+	@Override
+	public void recordWrite(String key, long size) {
+		entries.add(key, size);
+	}
+
+	@Override
+	public void recordAccess(String key) {
+		entries.touch(key);
+	}
+
+	@Override
+	public void recordRemoval(String key) {
+		entries.remove(key);
+	}
+
+	@Override
+	public List<String> victims(int count) {
+		List<String> victims = new ArrayList<String>(count);
+		entries.collect(victims, count);
+		return victims;
+	}
+}
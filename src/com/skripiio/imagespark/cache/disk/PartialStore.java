@@ -0,0 +1,163 @@
+package com.skripiio.imagespark.cache.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The values written by suspended edits of a {@link DiskLruCache}, kept so
+ * that a later edit of the same entry can pick up where they stopped; see
+ * {@link DiskLruCache.Editor#suspend}.
+ *
+ * <p>
+ * A suspended edit's dirty files are renamed to partial files beside them,
+ * which nothing reads until an edit resumes them. They don't count towards
+ * the cache's size, but they have a budget of their own: once it's exceeded
+ * the least recently suspended are deleted. Partial files survive reopening
+ * the cache, and are found again when it's loaded.
+ *
+ * <p>
+ * The bookkeeping is guarded by this store's monitor, which may be taken
+ * while holding a shard's lock but not the other way around.
+ */
+final class PartialStore {
+	static final String PARTIAL_FILE_SUFFIX = ".partial";
+
+	private final DirectoryLayout layout;
+	private final int valueCount;
+	private final long maxSize;
+
+	/** The total length of each key's partial files, oldest first. */
+	private final LinkedHashMap<String, Long> lengths = new LinkedHashMap<String, Long>();
+	private long size;
+
+	PartialStore(DirectoryLayout layout, int valueCount, long maxSize) {
+		this.layout = layout;
+		this.valueCount = valueCount;
+		this.maxSize = maxSize;
+	}
+
+	/** Returns false if suspended edits are discarded like aborted ones. */
+	boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * Finds the partial files left by an earlier session, deleting those
+	 * beyond the budget.
+	 */
+	synchronized void load() throws IOException {
+		for (File file : layout.listFiles()) {
+			String name = file.getName();
+			if (!name.endsWith(PARTIAL_FILE_SUFFIX)) {
+				continue;
+			}
+			// named key.index.partial
+			int dot = name.indexOf('.');
+			if (dot <= 0) {
+				continue;
+			}
+			String key = name.substring(0, dot);
+			Long length = lengths.get(key);
+			lengths.put(key, (length != null ? length : 0) + file.length());
+			size += file.length();
+		}
+		trimToSize();
+	}
+
+	/** Forgets every partial file, once the cache directory has been emptied. */
+	synchronized void clear() {
+		lengths.clear();
+		size = 0;
+	}
+
+	/**
+	 * Keeps the dirty files of a suspended edit of {@code key} in place of
+	 * any kept before. Callers must hold the shard's lock.
+	 *
+	 * @param dirtyFiles
+	 *            the edit's dirty files by index, which need not all exist
+	 */
+	synchronized void keep(String key, File[] dirtyFiles) throws IOException {
+		discard(key);
+		long length = 0;
+		for (int i = 0; i < valueCount; i++) {
+			if (!dirtyFiles[i].exists()) {
+				continue;
+			}
+			length += dirtyFiles[i].length();
+			File partial = fileFor(key, i);
+			if (!dirtyFiles[i].renameTo(partial)) {
+				throw new IOException("failed to rename " + dirtyFiles[i]
+						+ " to " + partial);
+			}
+		}
+		lengths.put(key, length);
+		size += length;
+		trimToSize();
+	}
+
+	/**
+	 * Moves the partial files of {@code key} back to {@code dirtyFiles} for
+	 * an edit that resumes them. Callers must hold the shard's lock.
+	 *
+	 * @return false if none were kept
+	 */
+	synchronized boolean resume(String key, File[] dirtyFiles)
+			throws IOException {
+		Long length = lengths.remove(key);
+		if (length == null) {
+			return false;
+		}
+		size -= length;
+		for (int i = 0; i < valueCount; i++) {
+			File partial = fileFor(key, i);
+			if (partial.exists()) {
+				layout.makeDirectoryFor(dirtyFiles[i]);
+				if (!partial.renameTo(dirtyFiles[i])) {
+					throw new IOException("failed to rename " + partial
+							+ " to " + dirtyFiles[i]);
+				}
+			} else {
+				deleteFile(dirtyFiles[i]);
+			}
+		}
+		return true;
+	}
+
+	/** Deletes the partial files of {@code key}, if any were kept. */
+	synchronized void discard(String key) throws IOException {
+		Long length = lengths.remove(key);
+		if (length == null) {
+			return;
+		}
+		size -= length;
+		for (int i = 0; i < valueCount; i++) {
+			deleteFile(fileFor(key, i));
+		}
+	}
+
+	private void trimToSize() throws IOException {
+		Iterator<Map.Entry<String, Long>> i = lengths.entrySet().iterator();
+		while (size > maxSize && i.hasNext()) {
+			Map.Entry<String, Long> oldest = i.next();
+			for (int index = 0; index < valueCount; index++) {
+				deleteFile(fileFor(oldest.getKey(), index));
+			}
+			size -= oldest.getValue();
+			i.remove();
+		}
+	}
+
+	private File fileFor(String key, int index) {
+		return layout.fileFor(key + "." + index + PARTIAL_FILE_SUFFIX);
+	}
+
+	private static void deleteFile(File file) throws IOException {
+		if (file.exists() && !file.delete()) {
+			throw new IOException("failed to delete " + file);
+		}
+	}
+}
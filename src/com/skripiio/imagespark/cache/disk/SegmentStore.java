@@ -0,0 +1,399 @@
+package com.skripiio.imagespark.cache.disk;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only segment files that hold the small values of a
+ * {@link DiskLruCache}, so that a cache of thumbnails doesn't need one file
+ * per value.
+ *
+ * <p>
+ * A value is addressed by a location: a long holding its segment id, its
+ * offset within the segment and its length. Each shard appends to its own
+ * current segment; a full segment is closed and never written again. Values
+ * that are replaced or removed leave dead space behind, which
+ * {@link DiskLruCache} reclaims by copying the live values of sparse segments
+ * into current ones and deleting the old files.
+ *
+ * <p>
+ * The bookkeeping is guarded by this store's monitor. A shard's current
+ * segment is only appended to by callers holding that shard's lock, so the
+ * copying itself happens outside of this store's monitor.
+ */
+final class SegmentStore {
+	static final String SEGMENT_FILE_PREFIX = "segment.";
+
+	private static final int LENGTH_BITS = 20;
+	private static final int OFFSET_BITS = 28;
+	private static final int SEGMENT_ID_LIMIT = 1 << 16;
+
+	/** The longest value that can be addressed by a location. */
+	static final long MAX_VALUE_LENGTH = (1L << LENGTH_BITS) - 1;
+
+	/** The largest segment that can be addressed by a location. */
+	static final long MAX_SEGMENT_SIZE = 1L << OFFSET_BITS;
+
+	private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+	static long location(int segment, long offset, long length) {
+		return ((long) segment << (OFFSET_BITS + LENGTH_BITS))
+				| (offset << LENGTH_BITS) | length;
+	}
+
+	static int segmentOf(long location) {
+		return (int) (location >>> (OFFSET_BITS + LENGTH_BITS));
+	}
+
+	static long offsetOf(long location) {
+		return (location >>> LENGTH_BITS) & (MAX_SEGMENT_SIZE - 1);
+	}
+
+	static long lengthOf(long location) {
+		return location & MAX_VALUE_LENGTH;
+	}
+
+	private static final class Segment {
+		private final int id;
+		private final File file;
+
+		/** Bytes written to the segment, live or dead. */
+		private long length;
+
+		/** Bytes that belong to values still in the cache. */
+		private long liveBytes;
+
+		private Segment(int id, File file) {
+			this.id = id;
+			this.file = file;
+		}
+	}
+
+	private final File directory;
+	private final long segmentSize;
+	private final Map<Integer, Segment> segments = new HashMap<Integer, Segment>();
+
+	/** Each shard's segment for appends, guarded by that shard's lock. */
+	private final Segment[] current;
+	private int nextSegmentId;
+	private long deadBytes;
+
+	SegmentStore(File directory, int shardCount, long segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.current = new Segment[shardCount];
+	}
+
+	/**
+	 * Registers the segment files already in the directory. None of them are
+	 * appended to again.
+	 */
+	synchronized void load() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.startsWith(SEGMENT_FILE_PREFIX)) {
+				continue;
+			}
+			try {
+				int id = Integer.parseInt(name.substring(SEGMENT_FILE_PREFIX
+						.length()));
+				Segment segment = new Segment(id, file);
+				segment.length = file.length();
+				segments.put(id, segment);
+				nextSegmentId = Math.max(nextSegmentId, id + 1)
+						% SEGMENT_ID_LIMIT;
+			} catch (NumberFormatException notASegment) {
+			}
+		}
+	}
+
+	/** Forgets every segment, once the cache directory has been emptied. */
+	synchronized void clear() {
+		segments.clear();
+		Arrays.fill(current, null);
+		nextSegmentId = 0;
+		deadBytes = 0;
+	}
+
+	/**
+	 * Returns true if the segment holding {@code location} exists and is long
+	 * enough to hold the value.
+	 */
+	synchronized boolean contains(long location) {
+		Segment segment = segments.get(segmentOf(location));
+		return segment != null
+				&& offsetOf(location) + lengthOf(location) <= segment.length;
+	}
+
+	/** Counts a value found in the journal as live. */
+	synchronized void addLive(long location) {
+		segments.get(segmentOf(location)).liveBytes += lengthOf(location);
+	}
+
+	/**
+	 * Deletes the segments without live values, once the journal has been
+	 * replayed.
+	 */
+	synchronized void deleteUnused() throws IOException {
+		deadBytes = 0;
+		for (Iterator<Segment> i = segments.values().iterator(); i.hasNext();) {
+			Segment segment = i.next();
+			if (segment.liveBytes == 0) {
+				deleteFile(segment.file);
+				i.remove();
+			} else {
+				deadBytes += segment.length - segment.liveBytes;
+			}
+		}
+	}
+
+	File fileFor(long location) {
+		return new File(directory, SEGMENT_FILE_PREFIX + segmentOf(location));
+	}
+
+	/**
+	 * Appends the content of {@code source} to the current segment of
+	 * {@code shard}. The caller must hold that shard's lock.
+	 *
+	 * @return the location of the appended value
+	 */
+	long append(int shard, File source) throws IOException {
+		long length = source.length();
+		InputStream in = new FileInputStream(source);
+		try {
+			return append(shard, in, length);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Copies the value at {@code location} into the current segment of
+	 * {@code shard}. The caller must hold that shard's lock.
+	 *
+	 * @return the new location of the value
+	 */
+	long copy(int shard, long location) throws IOException {
+		InputStream in = newInputStream(location);
+		try {
+			return append(shard, in, lengthOf(location));
+		} finally {
+			in.close();
+		}
+	}
+
+	private long append(int shard, InputStream in, long length)
+			throws IOException {
+		if (length > MAX_VALUE_LENGTH) {
+			throw new IllegalArgumentException("value too long: " + length);
+		}
+		Segment segment = current[shard];
+		if (segment == null || segment.length + length > segmentSize) {
+			segment = newSegment();
+			current[shard] = segment;
+		}
+
+		long offset = segment.length;
+		RandomAccessFile out = new RandomAccessFile(segment.file, "rw");
+		try {
+			// anything past the recorded length is left over from a failed
+			// append and is overwritten
+			out.seek(offset);
+			byte[] buffer = new byte[(int) Math.min(IO_BUFFER_SIZE,
+					Math.max(length, 1))];
+			long remaining = length;
+			while (remaining > 0) {
+				int count = in.read(buffer, 0,
+						(int) Math.min(buffer.length, remaining));
+				if (count == -1) {
+					throw new IOException("value shorter than " + length
+							+ " bytes");
+				}
+				out.write(buffer, 0, count);
+				remaining -= count;
+			}
+		} finally {
+			out.close();
+		}
+
+		synchronized (this) {
+			segment.length += length;
+			segment.liveBytes += length;
+		}
+		return location(segment.id, offset, length);
+	}
+
+	private synchronized Segment newSegment() throws IOException {
+		for (int attempts = 0; attempts < SEGMENT_ID_LIMIT; attempts++) {
+			int id = nextSegmentId;
+			nextSegmentId = (nextSegmentId + 1) % SEGMENT_ID_LIMIT;
+			if (!segments.containsKey(id)) {
+				Segment segment = new Segment(id, new File(directory,
+						SEGMENT_FILE_PREFIX + id));
+				segments.put(id, segment);
+				return segment;
+			}
+		}
+		throw new IOException("no free segment ids in " + directory);
+	}
+
+	/** Marks the value at {@code location} as dead. */
+	synchronized void release(long location) {
+		Segment segment = segments.get(segmentOf(location));
+		if (segment != null) {
+			segment.liveBytes -= lengthOf(location);
+			deadBytes += lengthOf(location);
+		}
+	}
+
+	/**
+	 * Returns a stream over the value at {@code location}. The stream ends at
+	 * the end of the value.
+	 */
+	InputStream newInputStream(long location) throws IOException {
+		FileInputStream in = new FileInputStream(fileFor(location));
+		in.getChannel().position(offsetOf(location));
+		return limit(in, lengthOf(location));
+	}
+
+	/** Returns a view of {@code in} that ends after {@code length} bytes. */
+	static InputStream limit(InputStream in, long length) {
+		return new ValueInputStream(in, length);
+	}
+
+	/** Writes the value at {@code location} to a standalone file. */
+	void extract(long location, File destination) throws IOException {
+		InputStream in = newInputStream(location);
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(destination);
+			byte[] buffer = new byte[IO_BUFFER_SIZE];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+			if (out != null) {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns true once at least a segment's worth of space is held by dead
+	 * values.
+	 */
+	synchronized boolean compactionRequired() {
+		return deadBytes >= segmentSize;
+	}
+
+	/**
+	 * Returns the ids of closed segments that are less than half live. Their
+	 * live values should be copied elsewhere before they are deleted.
+	 */
+	synchronized Set<Integer> sparseSegments() {
+		Set<Integer> sparse = new HashSet<Integer>();
+		for (Segment segment : segments.values()) {
+			if (!isCurrent(segment) && segment.liveBytes * 2 < segment.length) {
+				sparse.add(segment.id);
+			}
+		}
+		return sparse;
+	}
+
+	private boolean isCurrent(Segment segment) {
+		for (Segment c : current) {
+			if (c == segment) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Deletes segments whose live values have all been moved. */
+	synchronized void delete(Set<Integer> ids) throws IOException {
+		for (Integer id : ids) {
+			Segment segment = segments.remove(id);
+			if (segment != null) {
+				deadBytes -= segment.length - segment.liveBytes;
+				deleteFile(segment.file);
+			}
+		}
+	}
+
+	private static void deleteFile(File file) throws IOException {
+		if (file.exists() && !file.delete()) {
+			throw new IOException("failed to delete " + file);
+		}
+	}
+
+	/** A stream over one value in a segment. */
+	private static final class ValueInputStream extends InputStream {
+		private final InputStream in;
+		private long remaining;
+
+		private ValueInputStream(InputStream in, long length) {
+			this.in = in;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = in.read();
+			if (b != -1) {
+				remaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length)
+				throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int count = in.read(buffer, offset,
+					(int) Math.min(length, remaining));
+			if (count != -1) {
+				remaining -= count;
+			}
+			return count;
+		}
+
+		@Override
+		public long skip(long count) throws IOException {
+			long skipped = in.skip(Math.min(count, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.skripiio.imagespark.cache.disk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Segmented LRU. New entries start on probation and are promoted to the
+ * protected segment when they are read again; entries on probation are
+ * evicted first. A scan of entries that are read once can therefore only
+ * displace other entries on probation.
+ */
+public final class SlruEvictionPolicy implements EvictionPolicy {
+	/** The share of the budget kept for protected entries. */
+	static final double PROTECTED_FRACTION = 0.8;
+
+	private final WeightedLru probation = new WeightedLru();
+	private final WeightedLru protectedEntries = new WeightedLru();
+	private long protectedMaxSize;
+
+	@Override
+	public void setMaxSize(long maxSize) {
+		protectedMaxSize = (long) (maxSize * PROTECTED_FRACTION);
+	}
+
+	@Override
+	public void recordWrite(String key, long size) {
+		if (protectedEntries.contains(key)) {
+			protectedEntries.add(key, size);
+			demoteOverflow();
+		} else {
+			probation.add(key, size);
+		}
+	}
+
+	@Override
+	public void recordAccess(String key) {
+		if (protectedEntries.contains(key)) {
+			protectedEntries.touch(key);
+			return;
+		}
+		long size = probation.remove(key);
+		if (size >= 0) {
+			protectedEntries.add(key, size);
+			demoteOverflow();
+		}
+	}
+
+	private void demoteOverflow() {
+		while (protectedEntries.weight() > protectedMaxSize) {
+			String eldest = protectedEntries.eldest();
+			probation.add(eldest, protectedEntries.remove(eldest));
+		}
+	}
+
+	@Override
+	public void recordRemoval(String key) {
+		if (probation.remove(key) < 0) {
+			protectedEntries.remove(key);
+		}
+	}
+
+	@Override
+	public List<String> victims(int count) {
+		List<String> victims = new ArrayList<String>(count);
+		probation.collect(victims, count);
+		protectedEntries.collect(victims, count);
+		return victims;
+	}
+}
@@ -0,0 +1,90 @@
+package com.skripiio.imagespark.cache.disk;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accumulates the statistics of a {@link DiskLruCache}. Every method is a few
+ * atomic additions, so it can be called on every operation without taking a
+ * lock.
+ */
+final class StatsCounter {
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	private final AtomicLong evictedBytes = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong journalRebuildCount = new AtomicLong();
+	private final LatencyRecorder getLatency = new LatencyRecorder();
+	private final LatencyRecorder editLatency = new LatencyRecorder();
+	private final LatencyRecorder commitLatency = new LatencyRecorder();
+
+	void recordHit(long bytes) {
+		hitCount.incrementAndGet();
+		bytesRead.addAndGet(bytes);
+	}
+
+	void recordMisses(int count) {
+		missCount.addAndGet(count);
+	}
+
+	void recordEviction(long bytes) {
+		evictionCount.incrementAndGet();
+		evictedBytes.addAndGet(bytes);
+	}
+
+	void recordWritten(long bytes) {
+		bytesWritten.addAndGet(bytes);
+	}
+
+	void recordJournalRebuild() {
+		journalRebuildCount.incrementAndGet();
+	}
+
+	/** Records a get that started at {@code startNanos}. */
+	void recordGet(long startNanos) {
+		getLatency.record(System.nanoTime() - startNanos);
+	}
+
+	/** Records an edit that started at {@code startNanos}. */
+	void recordEdit(long startNanos) {
+		editLatency.record(System.nanoTime() - startNanos);
+	}
+
+	/** Records a commit that started at {@code startNanos}. */
+	void recordCommit(long startNanos) {
+		commitLatency.record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Copies the counters. The copy isn't atomic: an operation that completes
+	 * meanwhile may be reflected in some counters and not others.
+	 */
+	CacheStats snapshot() {
+		return new CacheStats(hitCount.get(), missCount.get(),
+				evictionCount.get(), evictedBytes.get(), bytesRead.get(),
+				bytesWritten.get(), journalRebuildCount.get(),
+				getLatency.snapshot(), editLatency.snapshot(),
+				commitLatency.snapshot());
+	}
+
+	private static final class LatencyRecorder {
+		private final AtomicLongArray counts = new AtomicLongArray(
+				CacheStats.Latency.BUCKET_COUNT);
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		void record(long nanos) {
+			counts.incrementAndGet(CacheStats.Latency.bucketOf(nanos));
+			totalNanos.addAndGet(nanos);
+		}
+
+		CacheStats.Latency snapshot() {
+			long[] copy = new long[counts.length()];
+			for (int i = 0; i < copy.length; i++) {
+				copy[i] = counts.get(i);
+			}
+			return new CacheStats.Latency(copy, totalNanos.get());
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.skripiio.imagespark.cache.disk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Window TinyLFU. New entries enter a small LRU window. When the window
+ * overflows, its eldest entry has to be admitted to the main segmented LRU,
+ * and if that is full it is only admitted if it has been used more often
+ * recently than the entry it would displace. Entries that lose are evicted
+ * first. Use counts come from a {@link FrequencySketch} that also remembers
+ * keys that are no longer cached.
+ * 
+ * <p>
+ * A burst of images that are only shown once can then fill the window, but
+ * not push out entries that are used again and again.
+ */
+public final class TinyLfuEvictionPolicy implements EvictionPolicy {
+	/** The share of the budget used by the admission window. */
+	static final double WINDOW_FRACTION = 0.01;
+
+	private final WeightedLru window = new WeightedLru();
+	private final WeightedLru probation = new WeightedLru();
+	private final WeightedLru protectedEntries = new WeightedLru();
+
+	/** Entries that weren't admitted, waiting to be evicted. */
+	private final WeightedLru rejected = new WeightedLru();
+
+	private final FrequencySketch sketch = new FrequencySketch();
+	private long windowMaxSize;
+	private long mainMaxSize;
+	private long protectedMaxSize;
+	private int entryCount;
+
+	@Override
+	public void setMaxSize(long maxSize) {
+		windowMaxSize = (long) (maxSize * WINDOW_FRACTION);
+		mainMaxSize = maxSize - windowMaxSize;
+		protectedMaxSize = (long) (mainMaxSize * SlruEvictionPolicy.PROTECTED_FRACTION);
+		sketch.ensureCapacity(0);
+	}
+
+	@Override
+	public void recordWrite(String key, long size) {
+		sketch.increment(key);
+		if (window.contains(key)) {
+			window.add(key, size);
+		} else if (probation.contains(key)) {
+			probation.add(key, size);
+		} else if (protectedEntries.contains(key)) {
+			protectedEntries.add(key, size);
+			demoteOverflow();
+		} else if (rejected.contains(key)) {
+			rejected.add(key, size);
+		} else {
+			window.add(key, size);
+			entryCount++;
+			sketch.ensureCapacity(entryCount);
+		}
+		evictWindowOverflow();
+	}
+
+	@Override
+	public void recordAccess(String key) {
+		sketch.increment(key);
+		if (window.contains(key)) {
+			window.touch(key);
+		} else if (protectedEntries.contains(key)) {
+			protectedEntries.touch(key);
+		} else {
+			long size = probation.remove(key);
+			if (size < 0) {
+				size = rejected.remove(key); // used again before eviction
+			}
+			if (size >= 0) {
+				protectedEntries.add(key, size);
+				demoteOverflow();
+			}
+		}
+	}
+
+	/** Moves entries out of the window, admitting those that earn it. */
+	private void evictWindowOverflow() {
+		while (window.weight() > windowMaxSize) {
+			String candidate = window.eldest();
+			long size = window.remove(candidate);
+			if (probation.weight() + protectedEntries.weight() + size <= mainMaxSize) {
+				probation.add(candidate, size);
+				continue;
+			}
+			String victim = probation.eldest();
+			if (victim == null) {
+				victim = protectedEntries.eldest();
+			}
+			if (victim == null
+					|| sketch.frequency(candidate) > sketch.frequency(victim)) {
+				probation.add(candidate, size);
+			} else {
+				rejected.add(candidate, size);
+			}
+		}
+	}
+
+	private void demoteOverflow() {
+		while (protectedEntries.weight() > protectedMaxSize) {
+			String eldest = protectedEntries.eldest();
+			probation.add(eldest, protectedEntries.remove(eldest));
+		}
+	}
+
+	@Override
+	public void recordRemoval(String key) {
+		if (window.remove(key) >= 0 || probation.remove(key) >= 0
+				|| protectedEntries.remove(key) >= 0
+				|| rejected.remove(key) >= 0) {
+			entryCount--;
+		}
+	}
+
+	@Override
+	public List<String> victims(int count) {
+		List<String> victims = new ArrayList<String>(count);
+		rejected.collect(victims, count);
+		probation.collect(victims, count);
+		protectedEntries.collect(victims, count);
+		window.collect(victims, count);
+		return victims;
+	}
+}
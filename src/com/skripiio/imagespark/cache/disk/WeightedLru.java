@@ -0,0 +1,58 @@
+package com.skripiio.imagespark.cache.disk;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keys in least recently used order, each with a weight, keeping the total
+ * weight. The building block of the eviction policies.
+ */
+final class WeightedLru {
+	private final LinkedHashMap<String, Long> weights = new LinkedHashMap<String, Long>(
+			0, 0.75f, true);
+	private long weight;
+
+	boolean contains(String key) {
+		return weights.containsKey(key);
+	}
+
+	/** Adds {@code key} as the most recently used, replacing its weight. */
+	void add(String key, long keyWeight) {
+		Long previous = weights.put(key, keyWeight);
+		weight += keyWeight - (previous != null ? previous : 0);
+	}
+
+	/** Makes {@code key} the most recently used. */
+	void touch(String key) {
+		weights.get(key);
+	}
+
+	/** Removes {@code key}, returning its weight or -1 if it was absent. */
+	long remove(String key) {
+		Long removed = weights.remove(key);
+		if (removed == null) {
+			return -1;
+		}
+		weight -= removed;
+		return removed;
+	}
+
+	/** Returns the least recently used key, or null if this is empty. */
+	String eldest() {
+		Iterator<String> i = weights.keySet().iterator();
+		return i.hasNext() ? i.next() : null;
+	}
+
+	long weight() {
+		return weight;
+	}
+
+	/** Appends keys, eldest first, until {@code into} has {@code count}. */
+	void collect(List<String> into, int count) {
+		for (Iterator<String> i = weights.keySet().iterator(); i.hasNext()
+				&& into.size() < count;) {
+			into.add(i.next());
+		}
+	}
+}
@@ -27,6 +27,12 @@ public class BitmapDecoder {
 	 */
 	public static Bitmap decodeSampledBitmapFromFile(InputStream filename,
 			int reqWidth, int reqHeight) {
+		if (filename instanceof ByteBufferInputStream
+				|| filename instanceof ByteArrayInputStream
+				|| filename instanceof CacheWritingInputStream) {
+			return decodeSampledBitmapFromRewindableStream(filename, reqWidth,
+					reqHeight);
+		}
 		try {
 			// First decode with inJustDecodeBounds=true to check dimensions
 			final BitmapFactory.Options options = new BitmapFactory.Options();
@@ -69,6 +75,50 @@ public class BitmapDecoder {
 		}
 	}
 
+	/**
+	 * Decodes a stream that can be reset to its start at any point, such as a
+	 * mapped disk cache file, a download being written to the disk cache or an
+	 * in-memory download. Both decode passes read
+	 * the stream directly, so its content is never copied into another array.
+	 */
+	private static Bitmap decodeSampledBitmapFromRewindableStream(
+			InputStream in, int reqWidth, int reqHeight) {
+		try {
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			in.mark(Integer.MAX_VALUE);
+			BitmapFactory.decodeStream(in, null, options);
+			in.reset();
+
+			options.inSampleSize = calculateInSampleSize(options, reqWidth,
+					reqHeight);
+
+			options.inJustDecodeBounds = false;
+			Bitmap b = BitmapFactory.decodeStream(in, null, options);
+
+			if (b == null) {
+				System.gc();
+				in.reset();
+				b = BitmapFactory.decodeStream(in, null, options);
+			}
+			return b;
+		} catch (OutOfMemoryError e) {
+			System.gc();
+			// OUT OF MEMORY ERROR try again
+			e.printStackTrace();
+			try {
+				in.reset();
+			} catch (IOException resetFailed) {
+				return null;
+			}
+			return decodeSampledBitmapFromRewindableStream(in, reqWidth,
+					reqHeight);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
 	/**
 	 * Calculate an inSampleSize for use in a {@link BitmapFactory.Options}
 	 * object when decoding bitmaps using the decode* methods from
@@ -5,8 +5,15 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
 import android.os.Environment;
@@ -14,6 +21,7 @@ import android.util.Log;
 
 import com.skripiio.imagespark.cache.disk.DiskLruCache;
 import com.skripiio.imagespark.cache.disk.DiskLruCache.Snapshot;
+import com.skripiio.imagespark.cache.disk.TinyLfuEvictionPolicy;
 
 public class BitmapDownloader {
 	private static final String TAG = "BitmapDownloader";
@@ -21,23 +29,105 @@ public class BitmapDownloader {
 	public static final int HTTP_CACHE_SIZE_IN_MB = 50;
 	public static final String HTTP_CACHE_DIR = "http";
 
+	/**
+	 * The size of the hot tier of the disk cache, kept on internal storage.
+	 * The cache size asked for goes to the cold tier on external storage,
+	 * which entries are demoted to when they are evicted from the hot tier.
+	 */
+	public static final int HTTP_CACHE_HOT_SIZE_IN_MB = 5;
+
+	/**
+	 * Number of lock stripes in the disk cache. Both ImageLoader pools hit the
+	 * cache at once, so this is kept above their combined worker count.
+	 */
+	public static final int HTTP_CACHE_SHARD_COUNT = 8;
+
+	/**
+	 * Downloads up to this size (most thumbnails) are packed into shared
+	 * segment files instead of getting a file each.
+	 */
+	public static final int HTTP_CACHE_PACKED_VALUE_THRESHOLD = 32 * 1024;
+
+	/**
+	 * The disk cache index is loaded in the background. Downloads started
+	 * before it is ready wait this long for it, then go to the network.
+	 */
+	public static final long HTTP_CACHE_OPEN_TIMEOUT_MS = 100;
+
+	/**
+	 * A download of a url another worker is already downloading waits this
+	 * long for it, then downloads the image itself without the cache.
+	 */
+	public static final long HTTP_CACHE_AWAIT_TIMEOUT_MS = 15 * 1000;
+
+	/**
+	 * Thumbnails are cached in a partition of their own, so a burst of large
+	 * images can't evict them.
+	 */
+	public static final String HTTP_CACHE_THUMBNAIL_PARTITION = "thumbnails";
+
+	/**
+	 * The share of each tier of the cache set aside for thumbnails, so the
+	 * cold tier keeps a proportionate number of them too.
+	 */
+	public static final int HTTP_CACHE_THUMBNAIL_PERCENT = 20;
+
+	/**
+	 * The bytes of interrupted downloads kept for resuming them, on top of the
+	 * hot tier's budget.
+	 */
+	public static final int HTTP_CACHE_SUSPENDED_SIZE_IN_MB = 4;
+
+	/** Each cache entry holds the image and its {@link HttpCacheMetadata}. */
+	private static final int HTTP_CACHE_VALUE_COUNT = 2;
+	private static final int VALUE_IMAGE = 0;
+	private static final int VALUE_METADATA = 1;
+
 	public static DiskLruCache mCache;
 
+	/** Revalidates stale entries one at a time, off the loading threads. */
+	private static final ExecutorService sRevalidationExecutor = new ThreadPoolExecutor(
+			0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+	/** Urls queued for revalidation, so each is only refreshed once. */
+	private static final Set<String> sRevalidating = new HashSet<String>();
+
 	public synchronized static DiskLruCache getCache(Context pContext,
 			String pCacheName, int pCacheSizeInMB) {
 		if (mCache == null || mCache.isClosed()) {
 			try {
-				boolean external = Environment.getExternalStorageState()
-						.equals(Environment.MEDIA_MOUNTED);
-				File dir = Utils.getDiskCacheDir(pContext, pCacheName);
-
-				int cacheSize = (pCacheSizeInMB * 1024 * 1024);
-				// if only internal. Use 5mb of space
-				if (!external) {
-					cacheSize = (5 * 1024 * 1024);
+				File dir = new File(pContext.getCacheDir(), pCacheName);
+				int cacheSize = HTTP_CACHE_HOT_SIZE_IN_MB * 1024 * 1024;
+
+				DiskLruCache.Options options = new DiskLruCache.Options();
+				// if external storage is missing, only the hot tier is used
+				if (Environment.getExternalStorageState().equals(
+						Environment.MEDIA_MOUNTED)
+						&& Utils.getExternalCacheDir(pContext) != null) {
+					options.setColdTier(
+							new File(Utils.getExternalCacheDir(pContext),
+									pCacheName), pCacheSizeInMB * 1024L * 1024);
 				}
 
-				mCache = DiskLruCache.open(dir, 1, 1, cacheSize);
+				mCache = DiskLruCache.open(dir, 1, HTTP_CACHE_VALUE_COUNT,
+						cacheSize,
+						options
+								.setShardCount(HTTP_CACHE_SHARD_COUNT)
+								.setPackedValueThreshold(
+										HTTP_CACHE_PACKED_VALUE_THRESHOLD)
+								.setDurability(
+										DiskLruCache.Durability.BATCHED)
+								.setLazyOpen(HTTP_CACHE_OPEN_TIMEOUT_MS)
+								.setEvictionPolicy(new TinyLfuEvictionPolicy())
+								.setSalvageOnCorruption(true)
+								.setContentAddressed(true)
+								.setSuspendedEditSize(
+										HTTP_CACHE_SUSPENDED_SIZE_IN_MB * 1024L * 1024)
+								.addPartition(
+										HTTP_CACHE_THUMBNAIL_PARTITION,
+										cacheSize / 100
+												* HTTP_CACHE_THUMBNAIL_PERCENT,
+										new TinyLfuEvictionPolicy()));
 			} catch (IOException e) {
 				e.printStackTrace();
 			} catch (IllegalArgumentException e) {
@@ -47,6 +137,29 @@ public class BitmapDownloader {
 		return mCache;
 	}
 
+	/**
+	 * Warms the disk cache with a bundle written by
+	 * {@link DiskLruCache#exportBundle}, such as one shipped in the app's
+	 * assets so that a new install doesn't download the images every user
+	 * sees. Urls already cached are left alone. Blocks until the cache is
+	 * open and the bundle read, so call it off the UI thread.
+	 *
+	 * @return the number of images added
+	 */
+	public static int importCacheBundle(Context pContext, String pCacheName,
+			int pCacheSizeInMB, InputStream pBundle) {
+		DiskLruCache cache = getCache(pContext, pCacheName, pCacheSizeInMB);
+		if (cache == null) {
+			return 0;
+		}
+		try {
+			return cache.importBundle(pBundle);
+		} catch (IOException e) {
+			Log.e(TAG, "\t- Error importing cache bundle - " + e);
+			return 0;
+		}
+	}
+
 	public static void resetCache() {
 		if (mCache != null && !mCache.isClosed()) {
 			try {
@@ -60,6 +173,8 @@ public class BitmapDownloader {
 
 	/**
 	 * Downloads a bitmap and returns the InputStream representing the bitmap.
+	 * A cached copy is returned even if it is stale; it is then revalidated in
+	 * the background, so the next request sees the refreshed copy.
 	 * 
 	 * @param pContext
 	 *            Application Context to access data network
@@ -67,13 +182,29 @@ public class BitmapDownloader {
 	 *            Url of the Bitmap to download
 	 * @param pCacheName
 	 *            Name of the Disk Cache to access / download to
-	 * @param pContentHolder
-	 *            The download will store the content of the stream in the
-	 *            byte[] for use
+	 * @return a stream over the bitmap that the caller must close. A stream
+	 *         over a download is written to the disk cache as it is read;
+	 *         closing it reads the rest of the download and commits it.
 	 */
 	public static InputStream downloadBitmap(Context context, String urlString,
 			String pCacheName, int pCacheSizeInMb) throws IOException,
 			OutOfMemoryError {
+		return downloadBitmap(context, urlString, pCacheName, pCacheSizeInMb,
+				null);
+	}
+
+	/**
+	 * Downloads a bitmap like {@link #downloadBitmap(Context, String, String,
+	 * int)}, caching a download in the disk cache partition
+	 * {@code pPartition}.
+	 * 
+	 * @param pPartition
+	 *            {@link #HTTP_CACHE_THUMBNAIL_PARTITION}, or null for the
+	 *            shared part of the cache
+	 */
+	public static InputStream downloadBitmap(Context context, String urlString,
+			String pCacheName, int pCacheSizeInMb, String pPartition)
+			throws IOException, OutOfMemoryError {
 
 		// Access Disk Cache
 		// at the moment there is a bug if the cache corrupts the download cache
@@ -83,35 +214,95 @@ public class BitmapDownloader {
 			Snapshot cacheSnapshot = cache.get(urlString);
 
 			if (cacheSnapshot != null) {
-				final BufferedInputStream buffIn = new BufferedInputStream(
-						cacheSnapshot.getInputStream(0), Utils.IO_BUFFER_SIZE);
-				return buffIn;
+				try {
+					HttpCacheMetadata metadata = HttpCacheMetadata
+							.parse(cacheSnapshot.getString(VALUE_METADATA));
+					if (!metadata.isFresh(System.currentTimeMillis())) {
+						revalidateInBackground(cache, urlString, cacheSnapshot,
+								metadata);
+					}
+					// hand the decoder the mapped file rather than a heap copy
+					return new ByteBufferInputStream(
+							cacheSnapshot.map(VALUE_IMAGE));
+				} finally {
+					cacheSnapshot.close();
+				}
+			}
+		}
+		// Claim the cache entry before connecting, so that a worker asking
+		// for a url another one is downloading waits for that download
+		// instead of fetching the image again
+		DiskLruCache.Editor editor = null;
+		if (cache != null) {
+			editor = cache.edit(Md5FileNameGenerator.generate(urlString),
+					pPartition);
+			if (editor == null && cache.isLoaded()) {
+				InputStream downloaded = awaitDownload(cache, urlString,
+						pPartition);
+				if (downloaded != null) {
+					return downloaded;
+				}
 			}
 		}
+
 		// Download
 		HttpURLConnection urlConnection = null;
 		try {
 			urlConnection = (HttpURLConnection) new URL(urlString)
 					.openConnection();
+			long resumedLength = 0;
+			if (editor != null) {
+				// byte offsets into a compressed transfer couldn't be resumed
+				urlConnection.setRequestProperty("Accept-Encoding", "identity");
+				resumedLength = resumeDownload(editor, urlConnection);
+			}
+			if (resumedLength > 0
+					&& urlConnection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+				resumedLength = 0; // the image changed, so it is sent whole
+			} else if (resumedLength > 0
+					&& rangeStart(urlConnection) != resumedLength) {
+				throw new IOException("unexpected range "
+						+ urlConnection.getHeaderField("Content-Range"));
+			}
 			final InputStream in = new BufferedInputStream(
 					urlConnection.getInputStream(), Utils.IO_BUFFER_SIZE);
+			HttpCacheMetadata metadata = HttpCacheMetadata.fromResponse(
+					urlConnection, System.currentTimeMillis());
 
-			byte[] content = Utils.getByteArrayFromInputStream(in);
-
-			in.close();
-			if (cache != null) { // dump in cache if it exists
-				InputStream cacheStream = new ByteArrayInputStream(content);
-				cache.put(cache, urlString, cacheStream);
-				cacheStream.close();
+			if (editor != null && metadata.isCacheable()) {
+				// stream the download into the cache while it is decoded. The
+				// caller closes the stream, which finishes the download and
+				// releases the connection.
+				editor.set(VALUE_METADATA, metadata.toString());
+				InputStream stream = new CacheWritingInputStream(in, editor,
+						resumedLength);
+				editor = null;
+				urlConnection = null;
+				return stream;
+			}
+			if (resumedLength > 0) {
+				// the start of the image is only in the edit being aborted
+				in.close();
+				throw new IOException("resumed download can't be cached");
+			}
+			if (editor != null) {
+				// let the workers waiting for this url download it themselves
+				abortQuietly(editor);
+				editor = null;
 			}
 
-			ByteArrayInputStream stream = new ByteArrayInputStream(content);
-			return stream;
+			// no cache, or the image can't be cached
+			byte[] content = Utils.getByteArrayFromInputStream(in);
+			in.close();
+			return new ByteArrayInputStream(content);
 
 		} catch (final IOException e) {
 			e.printStackTrace();
 			Log.e(TAG, "\t- Error in downloadBitmap - " + e);
 		} finally {
+			if (editor != null) {
+				abortQuietly(editor);
+			}
 			if (urlConnection != null) {
 				urlConnection.disconnect();
 			}
@@ -119,4 +310,224 @@ public class BitmapDownloader {
 
 		return null;
 	}
+
+	/**
+	 * Picks up the download that a cancelled or failed download of the entry
+	 * being edited left off, asking the server only for the bytes still
+	 * missing if the image hasn't changed since.
+	 * 
+	 * @return the number of bytes already downloaded, or 0 if the image is
+	 *         to be downloaded from the start
+	 */
+	private static long resumeDownload(DiskLruCache.Editor pEditor,
+			HttpURLConnection pConnection) throws IOException {
+		if (!pEditor.resume()) {
+			return 0;
+		}
+		long length = pEditor.getPendingLength(VALUE_IMAGE);
+		InputStream in = length > 0 ? pEditor
+				.newPendingInputStream(VALUE_METADATA) : null;
+		if (in == null) {
+			return 0;
+		}
+		HttpCacheMetadata metadata;
+		try {
+			metadata = HttpCacheMetadata.parse(new String(
+					Utils.getByteArrayFromInputStream(in), "UTF-8"));
+		} finally {
+			in.close();
+		}
+		return metadata.addRangeRequest(pConnection, length) ? length : 0;
+	}
+
+	/**
+	 * Returns the offset of the first byte of a partial response, or -1 if
+	 * its Content-Range can't be read.
+	 */
+	private static long rangeStart(HttpURLConnection pConnection) {
+		String range = pConnection.getHeaderField("Content-Range");
+		if (range == null || !range.startsWith("bytes ")) {
+			return -1;
+		}
+		int dash = range.indexOf('-');
+		try {
+			return dash < 0 ? -1 : Long.parseLong(range.substring(
+					"bytes ".length(), dash).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Waits for the download of {@code pUrlString} that is writing its cache
+	 * entry and returns what it wrote. If that download fails, this worker
+	 * downloads the image into the cache itself, while the others keep
+	 * waiting.
+	 * 
+	 * @return the image, or null if it couldn't be downloaded into the cache
+	 *         or the other download took longer than
+	 *         {@link #HTTP_CACHE_AWAIT_TIMEOUT_MS}
+	 */
+	private static InputStream awaitDownload(DiskLruCache pCache,
+			final String pUrlString, String pPartition) {
+		try {
+			Snapshot snapshot = pCache.getOrLoad(pUrlString, pPartition,
+					new DiskLruCache.Loader() {
+						@Override
+						public void load(DiskLruCache.Editor pEditor)
+								throws IOException {
+							HttpURLConnection urlConnection = (HttpURLConnection) new URL(
+									pUrlString).openConnection();
+							try {
+								HttpCacheMetadata metadata = HttpCacheMetadata
+										.fromResponse(urlConnection,
+												System.currentTimeMillis());
+								if (!metadata.isCacheable()) {
+									throw new IOException(
+											"response can't be cached");
+								}
+								writeEntry(urlConnection, metadata, pEditor);
+							} finally {
+								urlConnection.disconnect();
+							}
+						}
+					}, HTTP_CACHE_AWAIT_TIMEOUT_MS);
+			if (snapshot == null) {
+				return null;
+			}
+			try {
+				return new ByteBufferInputStream(snapshot.map(VALUE_IMAGE));
+			} finally {
+				snapshot.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "\t- Error waiting for download of " + pUrlString
+					+ " - " + e);
+			return null;
+		}
+	}
+
+	/** Writes the image and metadata of a response, without committing. */
+	private static void writeEntry(HttpURLConnection pConnection,
+			HttpCacheMetadata pMetadata, DiskLruCache.Editor pEditor)
+			throws IOException {
+		InputStream in = pConnection.getInputStream();
+		try {
+			OutputStream out = pEditor.newOutputStream(VALUE_IMAGE);
+			try {
+				byte[] buffer = new byte[Utils.IO_BUFFER_SIZE];
+				int count;
+				while ((count = in.read(buffer)) != -1) {
+					out.write(buffer, 0, count);
+				}
+			} finally {
+				out.close();
+			}
+			pEditor.set(VALUE_METADATA, pMetadata.toString());
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void abortQuietly(DiskLruCache.Editor pEditor) {
+		try {
+			pEditor.abort();
+		} catch (IOException e) {
+			Log.e(TAG, "\t- Error aborting cache edit - " + e);
+		}
+	}
+
+	/**
+	 * Queues a conditional request for a stale cache entry, unless one is
+	 * already queued for the url.
+	 * 
+	 * @param pSnapshot
+	 *            the snapshot the stale entry was read from, which only needs
+	 *            to identify the entry and may be closed meanwhile
+	 */
+	private static void revalidateInBackground(final DiskLruCache pCache,
+			final String pUrlString, final Snapshot pSnapshot,
+			final HttpCacheMetadata pMetadata) {
+		synchronized (sRevalidating) {
+			if (!sRevalidating.add(pUrlString)) {
+				return;
+			}
+		}
+		sRevalidationExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					revalidate(pCache, pUrlString, pSnapshot, pMetadata);
+				} catch (IOException e) {
+					Log.e(TAG, "\t- Error revalidating " + pUrlString + " - "
+							+ e);
+				} finally {
+					synchronized (sRevalidating) {
+						sRevalidating.remove(pUrlString);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Asks the server whether a cached image has changed. If it hasn't only the
+	 * metadata is updated, otherwise the new image replaces the cached one.
+	 */
+	private static void revalidate(DiskLruCache pCache, String pUrlString,
+			Snapshot pSnapshot, HttpCacheMetadata pMetadata)
+			throws IOException {
+		if (pCache.isClosed()) {
+			return;
+		}
+		HttpURLConnection urlConnection = (HttpURLConnection) new URL(
+				pUrlString).openConnection();
+		try {
+			pMetadata.addValidators(urlConnection);
+			int responseCode = urlConnection.getResponseCode();
+			long now = System.currentTimeMillis();
+			if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				HttpCacheMetadata refreshed = HttpCacheMetadata.fromResponse(
+						urlConnection, now, pMetadata);
+				// only the entry that was revalidated is refreshed, which may
+				// have been evicted, replaced or served by the cold tier since
+				DiskLruCache.Editor editor = pSnapshot.edit();
+				if (editor == null) {
+					return;
+				}
+				try {
+					// the image is kept as it is
+					editor.set(VALUE_METADATA, refreshed.toString());
+					editor.commit();
+				} finally {
+					editor.abortUnlessCommitted();
+				}
+				return;
+			}
+			if (responseCode != HttpURLConnection.HTTP_OK) {
+				return; // keep serving what we have
+			}
+
+			HttpCacheMetadata metadata = HttpCacheMetadata.fromResponse(
+					urlConnection, now);
+			String key = Md5FileNameGenerator.generate(pUrlString);
+			if (!metadata.isCacheable()) {
+				// the server no longer allows this image to be stored
+				pCache.remove(key);
+				return;
+			}
+			DiskLruCache.Editor editor = pCache.edit(key);
+			if (editor == null) {
+				return; // a download of this url is already writing it
+			}
+			try {
+				writeEntry(urlConnection, metadata, editor);
+				editor.commit();
+			} finally {
+				editor.abortUnlessCommitted();
+			}
+		} finally {
+			urlConnection.disconnect();
+		}
+	}
 }
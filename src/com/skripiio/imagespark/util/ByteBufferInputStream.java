@@ -0,0 +1,68 @@
+package com.skripiio.imagespark.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream over a ByteBuffer, typically a file mapped from the disk
+ * cache. Reading it does not copy the buffer onto the heap, and because the
+ * whole buffer stays available, {@link #reset} can always return to the mark.
+ */
+public class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer mBuffer;
+	private int mMark;
+
+	public ByteBufferInputStream(ByteBuffer pBuffer) {
+		mBuffer = pBuffer;
+		mMark = pBuffer.position();
+	}
+
+	@Override
+	public int read() {
+		if (!mBuffer.hasRemaining()) {
+			return -1;
+		}
+		return mBuffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] pBuffer, int pOffset, int pLength) {
+		if (pLength == 0) {
+			return 0;
+		}
+		if (!mBuffer.hasRemaining()) {
+			return -1;
+		}
+		int count = Math.min(pLength, mBuffer.remaining());
+		mBuffer.get(pBuffer, pOffset, count);
+		return count;
+	}
+
+	@Override
+	public long skip(long pCount) {
+		int count = (int) Math.max(0, Math.min(pCount, mBuffer.remaining()));
+		mBuffer.position(mBuffer.position() + count);
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return mBuffer.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	/** Marks the current position. The read limit is ignored. */
+	@Override
+	public synchronized void mark(int pReadLimit) {
+		mMark = mBuffer.position();
+	}
+
+	@Override
+	public synchronized void reset() {
+		mBuffer.position(mMark);
+	}
+}
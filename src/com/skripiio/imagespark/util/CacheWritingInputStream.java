@@ -0,0 +1,198 @@
+package com.skripiio.imagespark.util;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.skripiio.imagespark.cache.disk.DiskLruCache;
+
+/**
+ * An InputStream over a download that writes every byte it reads into the
+ * first value of a disk cache edit, so the download is decoded and cached in
+ * one pass without being held in memory.
+ *
+ * <p>
+ * {@link #reset} can always return to the mark: the bytes already read are
+ * read back from the edit's file, and reading continues from the network once
+ * they run out. Closing the stream reads the rest of the download into the
+ * cache and commits the edit. If the download fails or is cancelled, the edit
+ * is suspended instead, keeping the bytes read so far for a later download to
+ * resume.
+ */
+public class CacheWritingInputStream extends InputStream {
+	private final InputStream mSource;
+	private final DiskLruCache.Editor mEditor;
+	private final OutputStream mOut;
+
+	/** Bytes read from the source, all of which have been written out. */
+	private long mWritten;
+
+	/** The position of the next byte returned to the reader. */
+	private long mPosition;
+	private long mMark;
+
+	/** Reads back written bytes while the reader is behind the source. */
+	private InputStream mReplay;
+	private boolean mClosed;
+	private volatile boolean mCancelled;
+
+	public CacheWritingInputStream(InputStream pSource,
+			DiskLruCache.Editor pEditor) throws IOException {
+		this(pSource, pEditor, 0);
+	}
+
+	/**
+	 * Continues a download whose first {@code pResumedLength} bytes the edit
+	 * has resumed, and which {@code pSource} carries on from. Those bytes are
+	 * read back from the edit's file first.
+	 */
+	public CacheWritingInputStream(InputStream pSource,
+			DiskLruCache.Editor pEditor, long pResumedLength)
+			throws IOException {
+		mSource = pSource;
+		mEditor = pEditor;
+		mOut = new BufferedOutputStream(
+				pResumedLength > 0 ? pEditor.newAppendingOutputStream(0)
+						: pEditor.newOutputStream(0), Utils.IO_BUFFER_SIZE);
+		mWritten = pResumedLength;
+		if (pResumedLength > 0) {
+			mReplay = pEditor.newPendingInputStream(0);
+		}
+	}
+
+	/**
+	 * Stops the download from any thread: reading fails from then on, and
+	 * closing the stream suspends the edit instead of finishing it.
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] pBuffer, int pOffset, int pLength)
+			throws IOException {
+		if (mClosed) {
+			throw new IOException("stream closed");
+		}
+		if (mCancelled) {
+			throw new IOException("download cancelled");
+		}
+		if (pLength == 0) {
+			return 0;
+		}
+		if (mPosition < mWritten) {
+			int count = mReplay.read(pBuffer, pOffset,
+					(int) Math.min(pLength, mWritten - mPosition));
+			if (count == -1) {
+				throw new IOException("cache file shorter than "
+						+ mWritten + " bytes");
+			}
+			mPosition += count;
+			return count;
+		}
+
+		int count = mSource.read(pBuffer, pOffset, pLength);
+		if (count == -1) {
+			return -1;
+		}
+		mOut.write(pBuffer, pOffset, count);
+		mWritten += count;
+		mPosition += count;
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		if (mPosition < mWritten) {
+			return (int) Math.min(Integer.MAX_VALUE, mWritten - mPosition);
+		}
+		return mSource.available();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	/** Marks the current position. The read limit is ignored. */
+	@Override
+	public synchronized void mark(int pReadLimit) {
+		mMark = mPosition;
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		if (mReplay != null) {
+			mReplay.close();
+			mReplay = null;
+		}
+		mPosition = mMark;
+		if (mPosition < mWritten) {
+			mOut.flush();
+			mReplay = mEditor.newPendingInputStream(0);
+			long skipped = 0;
+			while (skipped < mPosition) {
+				long count = mReplay.skip(mPosition - skipped);
+				if (count <= 0) {
+					throw new IOException("failed to rewind cache file");
+				}
+				skipped += count;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (mClosed) {
+			return;
+		}
+		mClosed = true;
+		boolean finished = false;
+		try {
+			if (mReplay != null) {
+				mReplay.close();
+			}
+			byte[] buffer = new byte[Utils.IO_BUFFER_SIZE];
+			while (!mCancelled) {
+				int count = mSource.read(buffer);
+				if (count == -1) {
+					finished = true;
+					break;
+				}
+				mOut.write(buffer, 0, count);
+			}
+			mOut.close();
+		} catch (IOException e) {
+			suspend();
+			throw e;
+		} finally {
+			try {
+				mSource.close();
+			} catch (IOException ignored) {
+			}
+		}
+		if (finished) {
+			mEditor.commit();
+		} else {
+			mEditor.suspend();
+		}
+	}
+
+	/** Keeps what has been written, which only ever follows what was read. */
+	private void suspend() throws IOException {
+		try {
+			mOut.close();
+		} catch (IOException e) {
+			mEditor.abort();
+			return;
+		}
+		mEditor.suspend();
+	}
+}
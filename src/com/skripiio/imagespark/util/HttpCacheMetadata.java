@@ -0,0 +1,171 @@
+package com.skripiio.imagespark.util;
+
+import java.net.HttpURLConnection;
+import java.util.Locale;
+
+/**
+ * The HTTP caching headers of a download: its validators (ETag and
+ * Last-Modified) and when it stops being fresh. Stored as text in the second
+ * value of a disk cache entry.
+ */
+public class HttpCacheMetadata {
+	/** Never goes stale, for responses without freshness information. */
+	private static final long NEVER = Long.MAX_VALUE;
+
+	private final String mEtag;
+	private final String mLastModified;
+	private final long mExpiresAt;
+	private final boolean mNoStore;
+
+	private HttpCacheMetadata(String pEtag, String pLastModified,
+			long pExpiresAt, boolean pNoStore) {
+		mEtag = pEtag;
+		mLastModified = pLastModified;
+		mExpiresAt = pExpiresAt;
+		mNoStore = pNoStore;
+	}
+
+	/**
+	 * Reads the caching headers of a response received at {@code pNow}. A
+	 * response without any freshness information or validators stays fresh
+	 * forever, since it couldn't be revalidated cheaply anyway.
+	 */
+	public static HttpCacheMetadata fromResponse(HttpURLConnection pConnection,
+			long pNow) {
+		return fromResponse(pConnection, pNow, null);
+	}
+
+	/**
+	 * Reads the caching headers of a 304 Not Modified response to a
+	 * revalidation of {@code pPrevious}. Validators the response omits are
+	 * kept from the previous metadata.
+	 */
+	public static HttpCacheMetadata fromResponse(HttpURLConnection pConnection,
+			long pNow, HttpCacheMetadata pPrevious) {
+		boolean noStore = false;
+		boolean noCache = false;
+		long maxAgeSeconds = -1;
+		String cacheControl = pConnection.getHeaderField("Cache-Control");
+		if (cacheControl != null) {
+			for (String directive : cacheControl.split(",")) {
+				directive = directive.trim().toLowerCase(Locale.US);
+				if (directive.equals("no-store")) {
+					noStore = true;
+				} else if (directive.equals("no-cache")) {
+					noCache = true;
+				} else if (directive.startsWith("max-age=")) {
+					try {
+						maxAgeSeconds = Long.parseLong(directive
+								.substring("max-age=".length()));
+					} catch (NumberFormatException ignored) {
+					}
+				}
+			}
+		}
+
+		String etag = pConnection.getHeaderField("ETag");
+		String lastModified = pConnection.getHeaderField("Last-Modified");
+		if (pPrevious != null) {
+			etag = etag != null ? etag : pPrevious.mEtag;
+			lastModified = lastModified != null ? lastModified
+					: pPrevious.mLastModified;
+		}
+
+		long expiresAt;
+		if (noCache) {
+			expiresAt = pNow;
+		} else if (maxAgeSeconds >= 0) {
+			expiresAt = pNow + maxAgeSeconds * 1000;
+		} else if (pConnection.getExpiration() != 0) {
+			expiresAt = pConnection.getExpiration();
+		} else if (pConnection.getLastModified() != 0) {
+			// the usual heuristic: fresh for a tenth of its age
+			long date = pConnection.getDate() != 0 ? pConnection.getDate()
+					: pNow;
+			expiresAt = pNow
+					+ Math.max(0, date - pConnection.getLastModified()) / 10;
+		} else if (etag != null) {
+			expiresAt = pNow;
+		} else {
+			expiresAt = NEVER;
+		}
+		return new HttpCacheMetadata(etag, lastModified, expiresAt, noStore);
+	}
+
+	/**
+	 * Parses metadata written by {@link #toString}. Missing or unreadable
+	 * metadata is treated as fresh forever.
+	 */
+	public static HttpCacheMetadata parse(String pValue) {
+		if (pValue != null) {
+			String[] lines = pValue.split("\n", -1);
+			if (lines.length == 3) {
+				try {
+					return new HttpCacheMetadata(emptyToNull(lines[0]),
+							emptyToNull(lines[1]), Long.parseLong(lines[2]),
+							false);
+				} catch (NumberFormatException ignored) {
+				}
+			}
+		}
+		return new HttpCacheMetadata(null, null, NEVER, false);
+	}
+
+	private static String emptyToNull(String pValue) {
+		return pValue.length() == 0 ? null : pValue;
+	}
+
+	/** @return false if the response asked not to be stored */
+	public boolean isCacheable() {
+		return !mNoStore;
+	}
+
+	/** @return true if the response may still be used without revalidating */
+	public boolean isFresh(long pNow) {
+		return pNow < mExpiresAt;
+	}
+
+	/** @return true if the response can be revalidated conditionally */
+	public boolean hasValidators() {
+		return mEtag != null || mLastModified != null;
+	}
+
+	/** Makes {@code pConnection} a conditional request for this response. */
+	public void addValidators(HttpURLConnection pConnection) {
+		if (mEtag != null) {
+			pConnection.setRequestProperty("If-None-Match", mEtag);
+		}
+		if (mLastModified != null) {
+			pConnection.setRequestProperty("If-Modified-Since", mLastModified);
+		}
+	}
+
+	/**
+	 * Makes {@code pConnection} ask for the rest of this response from byte
+	 * {@code pOffset} on, if it hasn't changed; otherwise the server sends
+	 * all of it. A weak ETag can't vouch for the bytes already received, so
+	 * Last-Modified is used instead.
+	 *
+	 * @return false if this response has no validator to do so with
+	 */
+	public boolean addRangeRequest(HttpURLConnection pConnection, long pOffset) {
+		String validator;
+		if (mEtag != null && !mEtag.startsWith("W/")) {
+			validator = mEtag;
+		} else if (mLastModified != null) {
+			validator = mLastModified;
+		} else {
+			return false;
+		}
+		pConnection.setRequestProperty("Range", "bytes=" + pOffset + "-");
+		pConnection.setRequestProperty("If-Range", validator);
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return (mEtag != null ? mEtag : "") + "\n"
+				+ (mLastModified != null ? mLastModified : "") + "\n"
+				+ mExpiresAt;
+	}
+}